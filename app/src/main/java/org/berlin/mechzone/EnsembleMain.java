@@ -0,0 +1,157 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone;
+
+import org.apache.log4j.Logger;
+import org.berlin.mechzone.game.EnsembleRunner;
+import org.berlin.mechzone.game.ReactionRules;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parameter sweep entry point. Runs one world per combination of size,
+ * density and seed, as many at once as there are threads, and writes every
+ * run and the per-group means to a single summary file.
+ *
+ * Usage: EnsembleMain [--sizes 256,512x256] [--densities 0.1,0.3]
+ *                     [--seeds 1-100|1,5,9] [--ticks n]
+ *                     [--topology bounded|torus] [--reactions file|default]
+ *                     [--threads n] [--out summary.csv]
+ *
+ * A size is one number for a square world or WxH. --threads defaults to
+ * the number of cores. Every run steps sequentially, so a run's numbers are
+ * the same whatever the thread count.
+ *
+ * @author bbrown
+ */
+public class EnsembleMain {
+
+    private static final Logger LOGGER = Logger.getLogger(EnsembleMain.class);
+
+    private String sizes = "256";
+    private String densities = "0.1";
+    private String seeds = "1-8";
+    private long ticks = 1000;
+    private boolean wrap = false;
+    private String reactions_file = null;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private String out_file = "ensemble.csv";
+
+    /**
+     * Main entry point.
+     */
+    public static void main(final String [] args) throws IOException {
+        final EnsembleMain main = new EnsembleMain();
+        if (!main.parse(args)) {
+            LOGGER.error("Usage: EnsembleMain [--sizes 256,512x256] [--densities 0.1,0.3] [--seeds 1-100|1,5,9]"
+                    + " [--ticks n] [--topology bounded|torus] [--reactions file|default] [--threads n]"
+                    + " [--out summary.csv]");
+            return;
+        }
+        main.run();
+    }
+
+    boolean parse(final String [] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            final String value = args[i + 1];
+            switch (args[i]) {
+                case "--sizes":
+                    sizes = value;
+                    break;
+                case "--densities":
+                    densities = value;
+                    break;
+                case "--seeds":
+                    seeds = value;
+                    break;
+                case "--ticks":
+                    ticks = Long.parseLong(value);
+                    break;
+                case "--topology":
+                    wrap = "torus".equals(value);
+                    break;
+                case "--reactions":
+                    reactions_file = value;
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--out":
+                    out_file = value;
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return args.length % 2 == 0;
+    }
+
+    /**
+     * seeds as a list, either comma separated or a range first-last
+     */
+    static List<Long> parseSeeds(final String value) {
+        final List<Long> list = new ArrayList<>();
+        for (final String part : value.split(",")) {
+            final int dash = part.indexOf('-', 1);
+            if (dash > 0) {
+                final long last = Long.parseLong(part.substring(dash + 1).trim());
+                for (long s = Long.parseLong(part.substring(0, dash).trim()); s <= last; s++) {
+                    list.add(s);
+                }
+            } else {
+                list.add(Long.parseLong(part.trim()));
+            }
+        }
+        return list;
+    }
+
+    void run() throws IOException {
+        final ReactionRules rules = reactions_file == null ? null : "default".equals(reactions_file)
+                ? ReactionRules.defaults() : ReactionRules.load(new File(reactions_file));
+        final EnsembleRunner runner = new EnsembleRunner(threads, rules);
+        for (final String size : sizes.split(",")) {
+            final int x = size.indexOf('x');
+            final int width = Integer.parseInt((x < 0 ? size : size.substring(0, x)).trim());
+            final int height = x < 0 ? width : Integer.parseInt(size.substring(x + 1).trim());
+            for (final String density : densities.split(",")) {
+                for (final long seed : parseSeeds(seeds)) {
+                    runner.add(new EnsembleRunner.Run(width, height, wrap, Double.parseDouble(density.trim()), seed,
+                            ticks));
+                }
+            }
+        }
+        LOGGER.info(">>> Running ensemble : " + runner.getRunCount() + " runs sizes=" + sizes + " densities="
+                + densities + " seeds=" + seeds + (wrap ? " torus" : "") + " ticks=" + ticks + " threads=" + threads
+                + (rules != null ? " reactions=" + rules.size() : ""));
+        final long start = System.nanoTime();
+        final List<EnsembleRunner.Result> results = runner.run();
+        final double secs = (System.nanoTime() - start) / 1e9;
+        EnsembleRunner.writeSummary(results, new File(out_file));
+        LOGGER.info(String.format("%d runs in %.3fs, summary written to %s", results.size(), secs, out_file));
+        LOGGER.info(">>> Done");
+    }
+
+} // End of the class //
\ No newline at end of file
@@ -0,0 +1,307 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+package org.berlin.mechzone;
+
+import org.apache.log4j.Logger;
+import org.berlin.mechzone.game.CheckpointService;
+import org.berlin.mechzone.game.GameGraphicsGrid;
+import org.berlin.mechzone.game.JournalReplay;
+import org.berlin.mechzone.game.ReactionRules;
+import org.berlin.mechzone.game.SimulationEngine;
+import org.berlin.mechzone.game.SimulationMetrics;
+import org.berlin.mechzone.game.TickJournal;
+import org.berlin.mechzone.game.TickStatistics;
+import org.berlin.mechzone.game.WorldFile;
+import org.berlin.mechzone.game.WorldPopulator;
+import org.berlin.mechzone.game.XoroshiroRandom;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Headless batch entry point. Builds a world, runs it for a number of ticks
+ * with no UI and no delay and reports the throughput.
+ *
+ * Usage: HeadlessMain [--width n] [--height n] [--topology bounded|torus]
+ *                     [--entities n] [--seed n]
+ *                     [--populate a0=0.2,b0=0.05,e8=100]
+ *                     [--ticks n] [--threads n] [--load file] [--save file]
+ *                     [--journal dir] [--snapshot-every n]
+ *                     [--replay dir --seek tick]
+ *                     [--checkpoint dir] [--checkpoint-every n] [--keep n]
+ *                     [--reactions file|default]
+ *                     [--metrics file.csv|file.json] [--metrics-every secs]
+ *                     [--slow-tick-ms n] [--stats file.csv] [--stats-every n]
+ *
+ * --topology torus wraps the world around on both axes, whose sizes must
+ * then be multiples of 64. --populate fills the world with exact numbers of
+ * each type and state instead of --entities raw material, a density if the
+ * value has a decimal point or a count if not, on the --threads pool. With
+ * --load the world is read from a world file instead of being built, with
+ * --save the world is written out after the last tick. --journal records
+ * the run into a directory and --replay starts from the world a recorded
+ * run had at the given tick. --checkpoint saves the world in the background
+ * every few ticks and, if the directory already holds checkpoints, resumes
+ * from the newest one. --reactions turns on reactions from a rule file, or
+ * the built-in rule set. The run's metrics are always on JMX; --metrics also
+ * writes them to a file every few seconds, and ticks slower than
+ * --slow-tick-ms are counted and logged. --stats keeps population,
+ * displacement, mobility and clustering statistics as the ticks run and
+ * writes their averages every --stats-every ticks.
+ *
+ * @author bbrown
+ */
+public class HeadlessMain {
+
+    private static final Logger LOGGER = Logger.getLogger(HeadlessMain.class);
+
+    private int width = 1000;
+    private int height = 1000;
+    private boolean wrap = false;
+    private int entities = 200000;
+    private long seed = 1;
+    private String populate = null;
+    private long ticks = 1000;
+    private int threads = 0;
+    private String load_file = null;
+    private String save_file = null;
+    private String journal_dir = null;
+    private int snapshot_every = 10000;
+    private String replay_dir = null;
+    private long seek = 0;
+    private String checkpoint_dir = null;
+    private int checkpoint_every = 10000;
+    private int keep = 3;
+    private String reactions_file = null;
+    private String metrics_file = null;
+    private double metrics_every = 10;
+    private double slow_tick_ms = 0;
+    private String stats_file = null;
+    private int stats_every = 100;
+
+    /**
+     * Main entry point.
+     */
+    public static void main(final String [] args) throws IOException {
+        final HeadlessMain main = new HeadlessMain();
+        if (!main.parse(args)) {
+            LOGGER.error("Usage: HeadlessMain [--width n] [--height n] [--topology bounded|torus]"
+                    + " [--entities n] [--seed n]"
+                    + " [--populate a0=0.2,b0=0.05,e8=100] [--ticks n] [--threads n]"
+                    + " [--load file] [--save file] [--journal dir] [--snapshot-every n] [--replay dir --seek tick]"
+                    + " [--checkpoint dir] [--checkpoint-every n] [--keep n] [--reactions file|default]"
+                    + " [--metrics file.csv|file.json] [--metrics-every secs] [--slow-tick-ms n]"
+                    + " [--stats file.csv] [--stats-every n]");
+            return;
+        }
+        main.run();
+    }
+
+    boolean parse(final String [] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            final String value = args[i + 1];
+            switch (args[i]) {
+                case "--width":
+                    width = Integer.parseInt(value);
+                    break;
+                case "--height":
+                    height = Integer.parseInt(value);
+                    break;
+                case "--topology":
+                    wrap = "torus".equals(value);
+                    break;
+                case "--entities":
+                    entities = Integer.parseInt(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--populate":
+                    populate = value;
+                    break;
+                case "--ticks":
+                    ticks = Long.parseLong(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--load":
+                    load_file = value;
+                    break;
+                case "--save":
+                    save_file = value;
+                    break;
+                case "--journal":
+                    journal_dir = value;
+                    break;
+                case "--snapshot-every":
+                    snapshot_every = Integer.parseInt(value);
+                    break;
+                case "--replay":
+                    replay_dir = value;
+                    break;
+                case "--seek":
+                    seek = Long.parseLong(value);
+                    break;
+                case "--checkpoint":
+                    checkpoint_dir = value;
+                    break;
+                case "--checkpoint-every":
+                    checkpoint_every = Integer.parseInt(value);
+                    break;
+                case "--keep":
+                    keep = Integer.parseInt(value);
+                    break;
+                case "--reactions":
+                    reactions_file = value;
+                    break;
+                case "--metrics":
+                    metrics_file = value;
+                    break;
+                case "--metrics-every":
+                    metrics_every = Double.parseDouble(value);
+                    break;
+                case "--slow-tick-ms":
+                    slow_tick_ms = Double.parseDouble(value);
+                    break;
+                case "--stats":
+                    stats_file = value;
+                    break;
+                case "--stats-every":
+                    stats_every = Integer.parseInt(value);
+                    break;
+                default:
+                    return false;
+            }
+        }
+        if (width < GameGraphicsGrid.MIN_SIZE || height < GameGraphicsGrid.MIN_SIZE) {
+            LOGGER.error("HeadlessMain : the world must be at least " + GameGraphicsGrid.MIN_SIZE + "x"
+                    + GameGraphicsGrid.MIN_SIZE + " squares, was " + width + "x" + height);
+            return false;
+        }
+        return args.length % 2 == 0;
+    }
+
+    void run() throws IOException {
+        final long build_start = System.nanoTime();
+        final GameGraphicsGrid resumed = checkpoint_dir != null
+                ? CheckpointService.resume(new File(checkpoint_dir)) : null;
+        final GameGraphicsGrid grid;
+        if (resumed != null) {
+            LOGGER.info(">>> Resuming headless : " + checkpoint_dir + " ticks=" + ticks + " threads=" + threads);
+            grid = resumed;
+        } else if (replay_dir != null) {
+            LOGGER.info(">>> Running headless : " + replay_dir + " from tick " + seek + " ticks=" + ticks
+                    + " threads=" + threads);
+            grid = new JournalReplay(new File(replay_dir)).seek(seek);
+        } else if (load_file != null) {
+            LOGGER.info(">>> Running headless : " + load_file + " ticks=" + ticks + " threads=" + threads);
+            grid = WorldFile.load(new File(load_file));
+        } else if (populate != null) {
+            LOGGER.info(">>> Running headless : " + width + "x" + height + (wrap ? " torus" : "")
+                    + " populate=" + populate + " seed=" + seed + " ticks=" + ticks + " threads=" + threads);
+            grid = new GameGraphicsGrid(width, height, 0, wrap, new XoroshiroRandom(seed));
+            final ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : null;
+            try {
+                new WorldPopulator(grid.getWorld()).add(populate).populate(grid.getRandom(), pool);
+            } finally {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+            }
+        } else {
+            LOGGER.info(">>> Running headless : " + width + "x" + height + (wrap ? " torus" : "")
+                    + " entities=" + entities + " seed=" + seed + " ticks=" + ticks + " threads=" + threads);
+            grid = new GameGraphicsGrid(width, height, entities, wrap, new XoroshiroRandom(seed));
+        }
+        if (reactions_file != null) {
+            grid.setReactionRules("default".equals(reactions_file) ? ReactionRules.defaults()
+                    : ReactionRules.load(new File(reactions_file)));
+            LOGGER.info("Reactions : " + grid.getReactionRules().size() + " rules");
+        }
+        grid.setParallelism(threads);
+        final double build_secs = (System.nanoTime() - build_start) / 1e9;
+        LOGGER.info("World " + (resumed != null || load_file != null || replay_dir != null ? "loaded" : "built")
+                + " in " + String.format("%.3f", build_secs) + "s with " + grid.getWorld().size()
+                + " entities at tick " + grid.getCount());
+
+        final SimulationEngine engine = new SimulationEngine(grid);
+        final SimulationMetrics metrics = new SimulationMetrics("headless");
+        metrics.setReportSeconds(metrics_every);
+        metrics.setSlowTickMillis(slow_tick_ms);
+        if (metrics_file != null) {
+            metrics.startDump(new File(metrics_file));
+        }
+        metrics.register();
+        engine.addObserver(metrics);
+        TickStatistics stats = null;
+        if (stats_file != null) {
+            stats = new TickStatistics(grid);
+            stats.startDump(new File(stats_file), stats_every);
+            grid.setStatistics(stats);
+            engine.addObserver(stats);
+        }
+        TickJournal journal = null;
+        if (journal_dir != null) {
+            journal = new TickJournal(grid, new File(journal_dir), snapshot_every);
+            engine.addObserver(journal);
+        }
+        CheckpointService checkpoints = null;
+        if (checkpoint_dir != null) {
+            checkpoints = new CheckpointService(grid, new File(checkpoint_dir), checkpoint_every, keep);
+            engine.addObserver(checkpoints);
+        }
+        final long start = System.nanoTime();
+        engine.run(ticks);
+        final double secs = (System.nanoTime() - start) / 1e9;
+        metrics.close();
+        if (stats != null) {
+            stats.close();
+            LOGGER.info("Statistics : " + stats.summary());
+        }
+        if (journal != null) {
+            journal.close();
+            LOGGER.info("Journal " + journal_dir + " holds " + journal.getBytesWritten() + " bytes");
+        }
+        if (checkpoints != null) {
+            checkpoints.close();
+            LOGGER.info(String.format("Checkpoints written=%d skipped=%d max pause=%.2fms",
+                    checkpoints.getCheckpointsWritten(), checkpoints.getCheckpointsSkipped(),
+                    checkpoints.getMaxPauseNanos() / 1e6));
+        }
+
+        LOGGER.info(String.format("ticks=%d time=%.3fs ticks/sec=%.1f entity-updates/sec=%.0f moves/sec=%.0f"
+                + " reactions=%d", engine.getTicks(), secs, engine.getTicks() / secs, engine.getUpdates() / secs,
+                engine.getMoves() / secs, grid.getReactionCount()));
+        LOGGER.info("Metrics : " + metrics.summary());
+        grid.setParallelism(0);
+        if (save_file != null) {
+            final long save_start = System.nanoTime();
+            WorldFile.save(grid, new File(save_file));
+            LOGGER.info("World saved to " + save_file + " in "
+                    + String.format("%.3f", (System.nanoTime() - save_start) / 1e9) + "s");
+        }
+        LOGGER.info(">>> Done");
+    }
+
+} // End of the class //
\ No newline at end of file
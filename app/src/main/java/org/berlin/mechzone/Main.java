@@ -22,9 +22,17 @@
 package org.berlin.mechzone;
 
 import org.apache.log4j.Logger;
+import org.berlin.mechzone.game.GameGraphicsGrid;
 
 /**
  * Main entry point.
+ *
+ * Usage: Main [--width n] [--height n] [--entities n] [--topology bounded|torus]
+ *             [--rendering active|passive]
+ *
+ * A torus must be a multiple of 64 squares on each side. Active rendering,
+ * the default, draws the frames on a thread of their own; passive draws them
+ * on the Swing event thread.
  * @author bbrown
  *
  */
@@ -36,8 +44,42 @@ public class Main {
      * Main entry point.
      */
     public static void main(final String [] args) {        
+        int width = 50;
+        int height = 50;
+        int entities = GameGraphicsGrid.N_CELLS;
+        boolean wrap = false;
+        boolean active = true;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            final String value = args[i + 1];
+            switch (args[i]) {
+                case "--width":
+                    width = Integer.parseInt(value);
+                    break;
+                case "--height":
+                    height = Integer.parseInt(value);
+                    break;
+                case "--entities":
+                    entities = Integer.parseInt(value);
+                    break;
+                case "--topology":
+                    wrap = "torus".equals(value);
+                    break;
+                case "--rendering":
+                    active = !"passive".equals(value);
+                    break;
+                default:
+                    LOGGER.error("Usage: Main [--width n] [--height n] [--entities n] [--topology bounded|torus]"
+                            + " [--rendering active|passive]");
+                    return;
+            }
+        }
+        if (width < GameGraphicsGrid.MIN_SIZE || height < GameGraphicsGrid.MIN_SIZE) {
+            LOGGER.error("Main : the world must be at least " + GameGraphicsGrid.MIN_SIZE + "x"
+                    + GameGraphicsGrid.MIN_SIZE + " squares, was " + width + "x" + height);
+            return;
+        }
         LOGGER.info(">>> Running");
-        final MainFrame frame = new MainFrame();
+        final MainFrame frame = new MainFrame(width, height, entities, wrap, active);
         frame.setup();
         LOGGER.info(">>> Done");       
     }
@@ -21,6 +21,8 @@
  */
 package org.berlin.mechzone;
 
+import org.apache.log4j.Logger;
+import org.berlin.mechzone.game.GameGraphicsGrid;
 import org.berlin.mechzone.game.MechZoneSimulationPanel;
 
 import javax.swing.*;
@@ -28,12 +30,18 @@ import javax.swing.border.BevelBorder;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Main wrapper frame around the application.
  */
 public class MainFrame extends JFrame {
 
+    private static final Logger LOGGER = Logger.getLogger(MainFrame.class);
+
     private static final int FRAME_WIDTH = 800;
     private static final int FRAME_HEIGHT = 900;
 
@@ -43,8 +51,32 @@ public class MainFrame extends JFrame {
 
     private final JTextArea messages = new JTextArea();
 
+    private final JFileChooser chooser = new JFileChooser();
+
+    private MechZoneSimulationPanel graphicPanel;
+
+    /**
+     * size of the world to start with, and whether it wraps into a torus
+     */
+    private final int world_x, world_y, entities;
+    private final boolean wrap;
+
+    /**
+     * draw the simulation on a render thread rather than the event thread
+     */
+    private final boolean active;
+
     public MainFrame() {
+        this(50, 50, GameGraphicsGrid.N_CELLS, false, true);
+    }
+
+    public MainFrame(int world_x, int world_y, int entities, boolean wrap, boolean active) {
         super();
+        this.world_x = world_x;
+        this.world_y = world_y;
+        this.entities = entities;
+        this.wrap = wrap;
+        this.active = active;
     }
 
     /**
@@ -56,6 +88,14 @@ public class MainFrame extends JFrame {
         this.setLayout(new FlowLayout(FlowLayout.CENTER));
 
         this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        this.addWindowListener(new WindowAdapter() {
+            public void windowClosing(final WindowEvent e) {
+                // saves are written in the background, let them finish
+                if (graphicPanel != null) {
+                    graphicPanel.finishSaves();
+                }
+            }
+        });
         this.setResizable(false);
         this.setJMenuBar(this.createMenuBar());
         this.setLocation(20, 20);
@@ -65,7 +105,7 @@ public class MainFrame extends JFrame {
         this.setVisible(true);
 
         // Current object is main graphicPanel, add graphic jpanel to graphicPanel
-        final MechZoneSimulationPanel graphicPanel = this.simulation();
+        graphicPanel = this.simulation();
 
         // Add graphic panel and resize current frame
         this.add(graphicPanel);
@@ -84,7 +124,8 @@ public class MainFrame extends JFrame {
     }
 
     public MechZoneSimulationPanel simulation() {
-        final MechZoneSimulationPanel graphicPanel = new MechZoneSimulationPanel();
+        final MechZoneSimulationPanel graphicPanel = new MechZoneSimulationPanel(world_x, world_y, entities, wrap);
+        graphicPanel.setActiveRendering(active);
         graphicPanel.setPreferredSize(new Dimension(FRAME_WIDTH, GRAPHIC_HEIGHT));
         graphicPanel.setVisible(true);
         return graphicPanel;
@@ -96,7 +137,7 @@ public class MainFrame extends JFrame {
     public JMenuBar createMenuBar() {
         final JMenuBar menuBar;
         final JMenu menu;
-        final JMenuItem menuItem;
+        JMenuItem menuItem;
 
         menuBar = new JMenuBar();
         menu = new JMenu("File");
@@ -107,11 +148,89 @@ public class MainFrame extends JFrame {
         menuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_O, ActionEvent.ALT_MASK));
         menuItem.getAccessibleContext().setAccessibleDescription("Open a file");
         menuItem.setActionCommand("open");
+        menuItem.addActionListener(e -> this.openWorld());
+        menu.add(menuItem);
+        menuItem = new JMenuItem("Save", KeyEvent.VK_S);
+        menuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, ActionEvent.ALT_MASK));
+        menuItem.getAccessibleContext().setAccessibleDescription("Save the world to a file");
+        menuItem.setActionCommand("save");
+        menuItem.addActionListener(e -> this.saveWorld());
+        menu.add(menuItem);
+        menu.addSeparator();
+        menuItem = new JMenuItem("Load reactions", KeyEvent.VK_R);
+        menuItem.getAccessibleContext().setAccessibleDescription("Load a reaction rule file");
+        menuItem.setActionCommand("reactions");
+        menuItem.addActionListener(e -> this.loadReactions());
+        menu.add(menuItem);
+        menuItem = new JMenuItem("Remove all reactions", KeyEvent.VK_M);
+        menuItem.getAccessibleContext().setAccessibleDescription("Stop all reactions");
+        menuItem.setActionCommand("no-reactions");
+        menuItem.addActionListener(e -> {
+            if (graphicPanel != null) {
+                graphicPanel.removeAllReactions();
+                messages.append("\nRemoved all reactions");
+            }
+        });
         menu.add(menuItem);
 
         return menuBar;
     }
 
+    /**
+     * Ask for a world file and load it into the simulation, the file is read
+     * in the background.
+     */
+    public void openWorld() {
+        if (graphicPanel == null || chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        final File file = chooser.getSelectedFile();
+        messages.append("\nOpening " + file);
+        graphicPanel.openWorld(file, e -> {
+            if (e == null) {
+                messages.append("\nOpened " + file);
+            } else {
+                LOGGER.error("Couldn't open world file", e);
+                messages.append("\nCouldn't open " + file + " : " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Ask for a file name and save the world to it, the file is written in
+     * the background.
+     */
+    public void saveWorld() {
+        if (graphicPanel == null || chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        final File file = chooser.getSelectedFile();
+        graphicPanel.saveWorld(file, e -> {
+            if (e == null) {
+                messages.append("\nSaved " + file);
+            } else {
+                LOGGER.error("Couldn't save world file", e);
+                messages.append("\nCouldn't save " + file + " : " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Ask for a reaction rule file and use it in the simulation.
+     */
+    public void loadReactions() {
+        if (graphicPanel == null || chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            graphicPanel.loadReactions(chooser.getSelectedFile());
+            messages.append("\nLoaded reactions from " + chooser.getSelectedFile());
+        } catch (IOException e) {
+            LOGGER.error("Couldn't load reactions", e);
+            messages.append("\nCouldn't load " + chooser.getSelectedFile() + " : " + e.getMessage());
+        }
+    }
+
     /**
      * Create read-only scrollable message area as jlabel.
      */
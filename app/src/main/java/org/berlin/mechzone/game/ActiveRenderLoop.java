@@ -0,0 +1,256 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import org.apache.log4j.Logger;
+
+import java.awt.AWTException;
+import java.awt.BufferCapabilities;
+import java.awt.Canvas;
+import java.awt.DisplayMode;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.ImageCapabilities;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Active rendering onto a Canvas from a thread of its own, so composing a
+ * frame never holds up the Swing event thread and input stays smooth while
+ * the simulation and the drawing are busy.
+ *
+ * Frames go through a BufferStrategy, page flipping when the display allows
+ * it and blitting accelerated back buffers when not, and are paced to the
+ * display's refresh rate. The thread wakes once a refresh but only draws a
+ * frame when the scene has something new or one was asked for with
+ * requestFrame, so input shows on the next refresh.
+ */
+public class ActiveRenderLoop implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ActiveRenderLoop.class);
+
+    /**
+     * buffers in the strategy, front and back
+     */
+    private static final int BUFFERS = 2;
+
+    /**
+     * frames per second when the display doesn't say its refresh rate
+     */
+    private static final int DEFAULT_REFRESH_RATE = 60;
+
+    /**
+     * while frames keep failing, log only every this many failures
+     */
+    private static final int FAILURES_PER_LOG = 600;
+
+    /**
+     * What the loop draws. Both methods run on the render thread.
+     */
+    public interface Scene {
+
+        /**
+         * bring the frame up to date, true if it changed since it was last
+         * drawn
+         */
+        boolean prepare(long now_nanos);
+
+        /**
+         * draw the whole frame
+         */
+        void draw(Graphics2D g, long now_nanos);
+    }
+
+    private final Canvas canvas;
+    private final Scene scene;
+
+    private final AtomicBoolean requested = new AtomicBoolean(true);
+    private volatile boolean running = false;
+
+    private Thread thread = null;
+
+    /**
+     * render thread side: the strategy once the canvas can have one, and
+     * nanoseconds per display refresh
+     */
+    private BufferStrategy strategy = null;
+    private long frame_nanos = 1000000000L / DEFAULT_REFRESH_RATE;
+
+    /**
+     * frames in a row that failed
+     */
+    private int failures = 0;
+
+    public ActiveRenderLoop(final Canvas canvas, final Scene scene) {
+        this.canvas = canvas;
+        this.scene = scene;
+        canvas.setIgnoreRepaint(true);
+    }
+
+    public synchronized void start() {
+        if (thread == null) {
+            running = true;
+            thread = new Thread(this, "render");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * stop the render thread and wait for the frame in progress to finish
+     */
+    public void stop() {
+        final Thread t;
+        synchronized (this) {
+            t = thread;
+            if (t == null) {
+                return;
+            }
+            running = false;
+            thread = null;
+        }
+        LockSupport.unpark(t);
+        if (t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * draw a frame at the next refresh even if the scene has nothing new,
+     * for changes such as input that the scene doesn't track; any thread
+     */
+    public void requestFrame() {
+        requested.set(true);
+    }
+
+    /**
+     * true once the strategy is made and flips pages rather than copying
+     * the back buffer
+     */
+    public boolean isPageFlipping() {
+        final BufferStrategy s = strategy;
+        return s != null && s.getCapabilities().isPageFlipping();
+    }
+
+    public void run() {
+        long next_frame = System.nanoTime();
+        while (running) {
+            final long now = System.nanoTime();
+            try {
+                final boolean changed = scene.prepare(now);
+                if (requested.getAndSet(false) | changed) {
+                    if (!show(now)) {
+                        // not on screen yet, draw the frame once it is
+                        requested.set(true);
+                    }
+                }
+                failures = 0;
+            } catch (RuntimeException | Error e) {
+                // a bad frame mustn't freeze the window, start over with
+                // new buffers on the next refresh
+                if (failures++ % FAILURES_PER_LOG == 0) {
+                    LOGGER.error("Error drawing a frame (" + failures + " in a row) : " + e, e);
+                }
+                dropStrategy();
+                requested.set(true);
+            }
+            next_frame += frame_nanos;
+            long wait = next_frame - System.nanoTime();
+            if (-wait > frame_nanos) {
+                // a slow frame, drop the refreshes it missed
+                next_frame = System.nanoTime();
+            }
+            while (running && wait > 0) {
+                LockSupport.parkNanos(wait);
+                wait = next_frame - System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Draw a frame and show it, drawing again if the buffers were lost on
+     * the way. False if the canvas isn't displayable yet.
+     */
+    private boolean show(final long now) {
+        if (strategy == null && !createStrategy()) {
+            return false;
+        }
+        do {
+            do {
+                final Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
+                try {
+                    scene.draw(g, now);
+                } finally {
+                    g.dispose();
+                }
+            } while (strategy.contentsRestored());
+            strategy.show();
+        } while (strategy.contentsLost());
+        // push the frame out now on systems that queue drawing
+        Toolkit.getDefaultToolkit().sync();
+        return true;
+    }
+
+    private void dropStrategy() {
+        final BufferStrategy s = strategy;
+        strategy = null;
+        if (s != null) {
+            try {
+                s.dispose();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Couldn't dispose of the buffer strategy : " + e);
+            }
+        }
+    }
+
+    private boolean createStrategy() {
+        if (!canvas.isDisplayable() || canvas.getWidth() <= 0 || canvas.getHeight() <= 0) {
+            return false;
+        }
+        final BufferCapabilities flip = new BufferCapabilities(new ImageCapabilities(true),
+                new ImageCapabilities(true), BufferCapabilities.FlipContents.UNDEFINED);
+        try {
+            canvas.createBufferStrategy(BUFFERS, flip);
+        } catch (AWTException e) {
+            // no page flipping here, let AWT pick the best it has
+            canvas.createBufferStrategy(BUFFERS);
+        }
+        strategy = canvas.getBufferStrategy();
+
+        final GraphicsConfiguration config = canvas.getGraphicsConfiguration();
+        final int refresh = config == null ? DisplayMode.REFRESH_RATE_UNKNOWN
+                : config.getDevice().getDisplayMode().getRefreshRate();
+        frame_nanos = 1000000000L / (refresh > 0 ? refresh : DEFAULT_REFRESH_RATE);
+        LOGGER.info("Active rendering : page flipping=" + strategy.getCapabilities().isPageFlipping()
+                + " accelerated=" + strategy.getCapabilities().getBackBufferCapabilities().isAccelerated()
+                + " refresh=" + (refresh > 0 ? refresh + "Hz" : "unknown"));
+        return true;
+    }
+
+} // End of the class //
\ No newline at end of file
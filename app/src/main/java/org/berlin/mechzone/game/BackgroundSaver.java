@@ -0,0 +1,169 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Saves world files without holding up the simulation. The caller's thread
+ * only copies the world into one of two recycled images, a background
+ * thread writes the image out under a temporary name and renames it into
+ * place, so a file that exists is always complete. If both images are still
+ * being written the save is skipped rather than waited for.
+ */
+class BackgroundSaver {
+
+    private static final Logger LOGGER = Logger.getLogger(BackgroundSaver.class);
+
+    private static final int IMAGES = 2;
+
+    private final BlockingQueue<WorldImage> free = new ArrayBlockingQueue<>(IMAGES);
+    private final ExecutorService executor;
+
+    /**
+     * time the caller was held up copying, last and worst case
+     */
+    private volatile long last_pause_nanos = 0;
+    private volatile long max_pause_nanos = 0;
+
+    private volatile long last_write_nanos = 0;
+    private volatile long saved = 0;
+    private volatile long skipped = 0;
+    private volatile String last_error = null;
+
+    BackgroundSaver(final String thread_name) {
+        for (int i = 0; i < IMAGES; i++) {
+            free.add(new WorldImage());
+        }
+        executor = Executors.newSingleThreadExecutor(r -> {
+            final Thread t = new Thread(r, thread_name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Copy the grid now and write it to the file in the background, then run
+     * done on the writer thread. Returns false if the save was skipped. Must
+     * be called between ticks.
+     */
+    boolean save(final GameGraphicsGrid grid, final File file, final Runnable done) {
+        return save(grid, file, done, null);
+    }
+
+    /**
+     * As save, and if the write fails run failed with the error on the
+     * writer thread.
+     */
+    boolean save(final GameGraphicsGrid grid, final File file, final Runnable done,
+                 final Consumer<IOException> failed) {
+        final long start = System.nanoTime();
+        final WorldImage image = free.poll();
+        if (image == null) {
+            skipped++;
+            LOGGER.warn("Skipped saving " + file + ", the last saves are still being written");
+            return false;
+        }
+        image.copyFrom(grid);
+        final long pause = System.nanoTime() - start;
+        last_pause_nanos = pause;
+        if (pause > max_pause_nanos) {
+            max_pause_nanos = pause;
+        }
+        executor.execute(() -> write(image, file, done, failed));
+        return true;
+    }
+
+    private void write(final WorldImage image, final File file, final Runnable done,
+                       final Consumer<IOException> failed) {
+        final long start = System.nanoTime();
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            WorldFile.save(image, tmp);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            last_write_nanos = System.nanoTime() - start;
+            saved++;
+            if (done != null) {
+                done.run();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Couldn't save " + file, e);
+            last_error = e.getMessage();
+            tmp.delete();
+            if (failed != null) {
+                failed.accept(e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e));
+            }
+        } finally {
+            free.add(image);
+        }
+    }
+
+    public long getLastPauseNanos() {
+        return last_pause_nanos;
+    }
+
+    public long getMaxPauseNanos() {
+        return max_pause_nanos;
+    }
+
+    public long getLastWriteNanos() {
+        return last_write_nanos;
+    }
+
+    public long getSaved() {
+        return saved;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public String getLastError() {
+        return last_error;
+    }
+
+    /**
+     * wait for the saves already started and stop the writer thread
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+} // End of the class //
\ No newline at end of file
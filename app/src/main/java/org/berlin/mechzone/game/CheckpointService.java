@@ -0,0 +1,167 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checkpoints a running grid every interval ticks into a directory, keeping
+ * the newest keep of them. The simulation is only held up while the world is
+ * copied into a spare image, about a memory copy of the entity arrays; the
+ * file is written on a background thread. The copy time is reported as the
+ * pause so the cost stays visible.
+ */
+public class CheckpointService implements SimulationObserver {
+
+    private static final Logger LOGGER = Logger.getLogger(CheckpointService.class);
+
+    private static final Pattern NAME = Pattern.compile("checkpoint-(\\d+)\\.mzw");
+
+    private final GameGraphicsGrid grid;
+    private final File dir;
+    private final int interval;
+    private final int keep;
+
+    private final BackgroundSaver saver = new BackgroundSaver("checkpoint");
+
+    /**
+     * Checkpoint the grid every interval ticks, keeping the newest keep
+     * files. Add it as an observer of the engine stepping the grid.
+     */
+    public CheckpointService(final GameGraphicsGrid grid, final File dir, final int interval, final int keep)
+            throws IOException {
+        this.grid = grid;
+        this.dir = dir;
+        this.interval = Math.max(1, interval);
+        this.keep = Math.max(1, keep);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create checkpoint directory " + dir);
+        }
+    }
+
+    /**
+     * runs on the simulation thread after every tick
+     */
+    public void tickCompleted(final SimulationEngine engine, final int moves) {
+        if (grid.getCount() % interval == 0) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Checkpoint now, between two ticks. Returns false if the last two
+     * checkpoints are still being written and this one was skipped.
+     */
+    public boolean checkpoint() {
+        final long tick = grid.getCount();
+        return saver.save(grid, new File(dir, "checkpoint-" + tick + ".mzw"), () -> {
+            LOGGER.info(String.format("Checkpoint tick=%d paused %.2fms, written in %.1fms", tick,
+                    saver.getLastPauseNanos() / 1e6, saver.getLastWriteNanos() / 1e6));
+            rotate();
+        });
+    }
+
+    /**
+     * delete all but the newest keep checkpoints
+     */
+    private void rotate() {
+        final long ticks[] = list(dir);
+        for (int i = 0; i < ticks.length - keep; i++) {
+            final File old = new File(dir, "checkpoint-" + ticks[i] + ".mzw");
+            if (!old.delete()) {
+                LOGGER.warn("Couldn't delete old checkpoint " + old);
+            }
+        }
+    }
+
+    /**
+     * ticks of the checkpoints in a directory, oldest first
+     */
+    static long[] list(final File dir) {
+        final String names[] = dir.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long ticks[] = new long[names.length];
+        int n = 0;
+        for (final String name : names) {
+            final Matcher m = NAME.matcher(name);
+            if (m.matches()) {
+                ticks[n++] = Long.parseLong(m.group(1));
+            }
+        }
+        ticks = Arrays.copyOf(ticks, n);
+        Arrays.sort(ticks);
+        return ticks;
+    }
+
+    /**
+     * Load the newest checkpoint in a directory that reads back cleanly, or
+     * return null if there is none.
+     */
+    public static GameGraphicsGrid resume(final File dir) {
+        final long ticks[] = list(dir);
+        for (int i = ticks.length - 1; i >= 0; i--) {
+            final File file = new File(dir, "checkpoint-" + ticks[i] + ".mzw");
+            try {
+                return WorldFile.load(file);
+            } catch (IOException e) {
+                LOGGER.warn("Couldn't resume from " + file + " : " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * time the last checkpoint held up the simulation
+     */
+    public long getLastPauseNanos() {
+        return saver.getLastPauseNanos();
+    }
+
+    public long getMaxPauseNanos() {
+        return saver.getMaxPauseNanos();
+    }
+
+    public long getCheckpointsWritten() {
+        return saver.getSaved();
+    }
+
+    public long getCheckpointsSkipped() {
+        return saver.getSkipped();
+    }
+
+    /**
+     * wait for the checkpoints already started to reach the disk
+     */
+    public void close() {
+        saver.close();
+    }
+
+} // End of the class //
\ No newline at end of file
@@ -0,0 +1,87 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.util.Arrays;
+
+/**
+ * List of squares that changed, as flat x * n_y + y indices. A square may be
+ * listed more than once. Once more than the limit have been marked the list
+ * gives up and reports overflow, which means "redraw everything".
+ */
+public class DirtyCells {
+
+    private final int limit;
+    private int cells[] = new int[64];
+    private int n = 0;
+    private boolean overflow = false;
+
+    public DirtyCells(final int limit) {
+        this.limit = limit;
+    }
+
+    public void mark(final int index) {
+        if (overflow) {
+            return;
+        }
+        if (n == limit) {
+            overflow = true;
+            return;
+        }
+        if (n == cells.length) {
+            cells = Arrays.copyOf(cells, Math.min(limit, n * 2));
+        }
+        cells[n++] = index;
+    }
+
+    public void markAll() {
+        overflow = true;
+    }
+
+    public void addAll(final DirtyCells other) {
+        if (other.overflow) {
+            overflow = true;
+        }
+        for (int i = 0; i < other.n && !overflow; i++) {
+            mark(other.cells[i]);
+        }
+    }
+
+    public void clear() {
+        n = 0;
+        overflow = false;
+    }
+
+    public boolean isOverflow() {
+        return overflow;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public int get(final int i) {
+        return cells[i];
+    }
+
+} // End of the class //
\ No newline at end of file
@@ -0,0 +1,304 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many independent worlds at once for a parameter sweep. Each run owns
+ * its grid, random source and engine, built on the worker thread that runs
+ * it, and the only thing the runs share is the read-only rule set, so any
+ * number of them can run side by side. A run steps sequentially and its
+ * result depends only on its parameters and seed, never on the number of
+ * threads or on what else is running.
+ */
+public class EnsembleRunner {
+
+    private static final Logger LOGGER = Logger.getLogger(EnsembleRunner.class);
+
+    /**
+     * One world of the sweep.
+     */
+    public static class Run {
+
+        final int width;
+        final int height;
+        final boolean wrap;
+        final double density;
+        final long seed;
+        final long ticks;
+
+        public Run(int width, int height, boolean wrap, double density, long seed, long ticks) {
+            if (width < GameGraphicsGrid.MIN_SIZE || height < GameGraphicsGrid.MIN_SIZE
+                    || density < 0 || density > 1 || ticks < 0)
+                throw new Error("EnsembleRunner : bad run " + width + "x" + height + " density=" + density
+                        + " ticks=" + ticks);
+            this.width = width;
+            this.height = height;
+            this.wrap = wrap;
+            this.density = density;
+            this.seed = seed;
+            this.ticks = ticks;
+        }
+
+        String group() {
+            return width + "," + height + "," + (wrap ? "torus" : "bounded") + "," + density;
+        }
+
+    } // End of the class //
+
+    /**
+     * What a run ended with. The times are wall clock and vary between
+     * runs, everything else is fixed by the run's parameters.
+     */
+    public static class Result {
+
+        final Run run;
+        int entities;
+        long bonds;
+        long updates;
+        long moves;
+        long reactions;
+        long hash;
+        double build_secs;
+        double run_secs;
+
+        Result(final Run run) {
+            this.run = run;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        public long getMoves() {
+            return moves;
+        }
+
+        public long getReactions() {
+            return reactions;
+        }
+
+    } // End of the class //
+
+    private final int threads;
+    private final ReactionRules rules;
+    private final List<Run> runs = new ArrayList<>();
+
+    /**
+     * threads is the number of worlds run at once, rules may be null for no
+     * reactions
+     */
+    public EnsembleRunner(int threads, final ReactionRules rules) {
+        if (threads <= 0)
+            throw new Error("EnsembleRunner : threads must be positive, was " + threads);
+        this.threads = threads;
+        this.rules = rules;
+    }
+
+    public EnsembleRunner add(final Run run) {
+        runs.add(run);
+        return this;
+    }
+
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Run every world on a pool of the given size and return the results in
+     * the order the runs were added. Only as many worlds as threads are in
+     * memory at once.
+     */
+    public List<Result> run() {
+        final AtomicInteger thread_ids = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread t = new Thread(r, "mechzone-ensemble-" + thread_ids.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        final AtomicInteger done = new AtomicInteger();
+        try {
+            final List<Future<Result>> futures = new ArrayList<>(runs.size());
+            for (final Run run : runs) {
+                futures.add(executor.submit(() -> {
+                    final Result result = runOne(run);
+                    LOGGER.info(String.format(Locale.ROOT,
+                            "Run %d/%d : %dx%d density=%s seed=%d moves=%d reactions=%d in %.3fs",
+                            done.incrementAndGet(), runs.size(), run.width, run.height, run.density, run.seed,
+                            result.moves, result.reactions, result.run_secs));
+                    return result;
+                }));
+            }
+            final List<Result> results = new ArrayList<>(runs.size());
+            for (final Future<Result> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error("EnsembleRunner : interrupted");
+        } catch (ExecutionException e) {
+            throw new Error("EnsembleRunner : run failed : " + e.getCause(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Build and run one world on the calling thread. The world is the usual
+     * bonded chain plus raw material of every type at the run's density.
+     */
+    Result runOne(final Run run) {
+        final Result result = new Result(run);
+        final long build_start = System.nanoTime();
+        final GameGraphicsGrid grid = new GameGraphicsGrid(run.width, run.height, 0, run.wrap,
+                new XoroshiroRandom(run.seed));
+        final GameWorldStore world = grid.getWorld();
+        final long free = (long) run.width * run.height - world.size();
+        final long n = Math.min(free, Math.round(run.density * run.width * run.height));
+        final WorldPopulator raw = new WorldPopulator(world);
+        for (int t = 0; t < EntityBase.MAX_TYPES; t++) {
+            raw.add(t, 0, n / EntityBase.MAX_TYPES + (t < n % EntityBase.MAX_TYPES ? 1 : 0));
+        }
+        raw.populate(grid.getRandom(), null);
+        if (rules != null) {
+            grid.setReactionRules(rules);
+        }
+        result.build_secs = (System.nanoTime() - build_start) / 1e9;
+
+        final SimulationEngine engine = new SimulationEngine(grid);
+        final long start = System.nanoTime();
+        engine.run(run.ticks);
+        result.run_secs = (System.nanoTime() - start) / 1e9;
+
+        result.entities = world.size();
+        result.updates = engine.getUpdates();
+        result.moves = engine.getMoves();
+        result.reactions = grid.getReactionCount();
+        long bonds = 0;
+        long hash = 0;
+        for (int id = 0; id < world.getIdLimit(); id++) {
+            if (!world.isLive(id)) {
+                continue;
+            }
+            bonds += world.getBondCount(id);
+            hash = hash * 31 + world.getX(id);
+            hash = hash * 31 + world.getY(id);
+            hash = hash * 31 + world.getType(id) * EntityBase.MAX_STATES + world.getState(id);
+        }
+        result.bonds = bonds / 2;
+        result.hash = hash;
+        return result;
+    }
+
+    /**
+     * Write the results as one csv file: a row per run in run order, then a
+     * mean and standard deviation row per (size, topology, density) group
+     * over its seeds, with the number of seeds in the seed column. Written
+     * under a temporary name and renamed into place.
+     */
+    public static void writeSummary(final List<Result> results, final File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8))) {
+            out.println("row,width,height,topology,density,seed,ticks,entities,bonds,updates,moves,reactions,"
+                    + "moves_per_tick,reactions_per_tick,ticks_per_sec,build_secs,run_secs,hash");
+            for (final Result r : results) {
+                final double ticks = Math.max(1, r.run.ticks);
+                out.println(String.format(Locale.ROOT, "run,%s,%d,%d,%d,%d,%d,%d,%d,%.3f,%.3f,%.1f,%.3f,%.3f,%016x",
+                        r.run.group(), r.run.seed, r.run.ticks, r.entities, r.bonds, r.updates, r.moves,
+                        r.reactions, r.moves / ticks, r.reactions / ticks, r.run.ticks / Math.max(1e-9, r.run_secs),
+                        r.build_secs, r.run_secs, r.hash));
+            }
+            final Map<String, List<Result>> groups = new LinkedHashMap<>();
+            for (final Result r : results) {
+                groups.computeIfAbsent(r.run.group(), k -> new ArrayList<>()).add(r);
+            }
+            for (final Map.Entry<String, List<Result>> group : groups.entrySet()) {
+                final List<Result> rs = group.getValue();
+                final double ticks = Math.max(1, rs.get(0).run.ticks);
+                final double entities[] = new double[rs.size()];
+                final double bonds[] = new double[rs.size()];
+                final double moves[] = new double[rs.size()];
+                final double reactions[] = new double[rs.size()];
+                final double rate[] = new double[rs.size()];
+                for (int i = 0; i < rs.size(); i++) {
+                    final Result r = rs.get(i);
+                    entities[i] = r.entities;
+                    bonds[i] = r.bonds;
+                    moves[i] = r.moves / ticks;
+                    reactions[i] = r.reactions / ticks;
+                    rate[i] = r.run.ticks / Math.max(1e-9, r.run_secs);
+                }
+                out.println(String.format(Locale.ROOT, "mean,%s,%d,%d,%.1f,%.1f,,,,%.3f,%.3f,%.1f,,,",
+                        group.getKey(), rs.size(), rs.get(0).run.ticks,
+                        mean(entities), mean(bonds), mean(moves), mean(reactions), mean(rate)));
+                out.println(String.format(Locale.ROOT, "stddev,%s,%d,%d,%.1f,%.1f,,,,%.3f,%.3f,%.1f,,,",
+                        group.getKey(), rs.size(), rs.get(0).run.ticks,
+                        stddev(entities), stddev(bonds), stddev(moves), stddev(reactions), stddev(rate)));
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static double mean(final double values[]) {
+        double sum = 0;
+        for (final double v : values) {
+            sum += v;
+        }
+        return sum / values.length;
+    }
+
+    /**
+     * sample standard deviation, 0 for a single value
+     */
+    private static double stddev(final double values[]) {
+        if (values.length < 2) {
+            return 0;
+        }
+        final double mean = mean(values);
+        double sum = 0;
+        for (final double v : values) {
+            sum += (v - mean) * (v - mean);
+        }
+        return Math.sqrt(sum / (values.length - 1));
+    }
+
+} // End of the class //
\ No newline at end of file
@@ -26,18 +26,15 @@ import org.apache.log4j.Logger;
 
 import java.awt.Color;
 import java.awt.Graphics;
-import java.util.Vector;
 
+/**
+ * Thin view over one entity in a GameWorldStore. The move and draw kernels
+ * are static so the grid can run them over entity ids without creating views.
+ */
 public class Entity extends EntityBase {
 
     private static final Logger LOGGER = Logger.getLogger(Entity.class);
 
-    // / the cell's current location
-    private int x, y;
-
-    // / which direction did we move in previously?
-    private int last_x, last_y;
-
     /*
      * encoding of an 8-neighbourhood: 1 2 3 0 8 4 7 6 5
      */
@@ -45,24 +42,68 @@ public class Entity extends EntityBase {
     private static final int EIGHT_Y[] = { 0, -1, -1, -1, 0, 1, 1, 1, 0 };
 
     /**
-     * Default constructor
+     * the same offsets as a step inside a chunk's occupancy array
+     */
+    private static final int EIGHT_SLOT[] = new int[9];
+
+    /**
+     * The directions blocked by one column of three squares, indexed by
+     * (dx + 1) * 8 + the column's occupancy bits for dy = -1, 0, 1 as bits
+     * 0, 1, 2; a whole neighbourhood is the OR over its three columns.
+     */
+    private static final int COLUMN_BLOCKED[] = new int[24];
+
+    /**
+     * For a bonded partner at offset (dx, dy), indexed by (dx + 1) * 3 + dy + 1,
+     * the moves that keep it in the 8-neighbourhood, one bit per direction
      */
-    public Entity(int x_loc, int y_loc, int cell_type, int cell_state, Vector<Entity> cell_list,
-                  GameCellSlot cell_grid[][]) {
+    private static final int BOND_MOVES[] = new int[9];
 
-        super(cell_type, cell_state);
-        if (cell_grid[x_loc][y_loc].queryEmpty()) {
-            x = x_loc;
-            y = y_loc;
-            cell_list.addElement(this);
-            cell_grid[x][y].makeOccupied(this);
+    /**
+     * the direction bit of a neighbour at offset (dx, dy), same index
+     */
+    private static final int BOND_DIRECTION[] = new int[9];
 
-        } else {
-            // couldn't create! (square was occupied)
-            throw new Error("Couldn't create, square is occupied!");
+    static {
+        for (int i = 0; i < 9; i++) {
+            EIGHT_SLOT[i] = (EIGHT_X[i] << GameWorldStore.CHUNK_SHIFT) + EIGHT_Y[i];
+        }
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                final int d = (dx + 1) * 3 + dy + 1;
+                for (int i = 0; i < 8; i++) {
+                    if (Math.abs(dx - EIGHT_X[i]) <= 1 && Math.abs(dy - EIGHT_Y[i]) <= 1) {
+                        BOND_MOVES[d] |= 1 << i;
+                    }
+                    if (EIGHT_X[i] == dx && EIGHT_Y[i] == dy) {
+                        BOND_DIRECTION[d] = 1 << i;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            for (int t = 0; t < 8; t++) {
+                if ((t & (1 << (EIGHT_Y[i] + 1))) != 0) {
+                    COLUMN_BLOCKED[(EIGHT_X[i] + 1) * 8 + t] |= 1 << i;
+                }
+            }
         }
     }
 
+    /**
+     * Create a new entity on an empty square of the world
+     */
+    public Entity(int x_loc, int y_loc, int cell_type, int cell_state, GameWorldStore world) {
+        this(world, world.add(x_loc, y_loc, cell_type, cell_state));
+    }
+
+    /**
+     * View over an existing entity id
+     */
+    Entity(GameWorldStore world, int id) {
+        super(world, id);
+    }
+
     public String toString() {
         return super.toString();
     }
@@ -71,67 +112,223 @@ public class Entity extends EntityBase {
      * access function returning x-coordinate
      */
     public int getX() {
-        return x;
+        return world.x[id];
     }
 
     /**
      * access function returning y-coordinate
      */
     public int getY() {
-        return y;
+        return world.y[id];
     }
 
+    public boolean makeMove(final GameRandom random) {
+        return makeMove(world, id, random);
+    }
 
     /**
      * move to an 8-neighbourhood empty square subject to all bonds being
-     * maintained (8-connectivity)
+     * maintained (8-connectivity), returns true if the cell moved
      */
-    public void makeMove(int n_x, int n_y, GameCellSlot cell_grid[][]) {
+    static boolean makeMove(GameWorldStore world, int id, GameRandom random) {
+        final int x = world.x[id];
+        final int y = world.y[id];
+
+        // which of the 8 possible moves maintain the bonds? each partner is
+        // a neighbour, so one table read per bond
+        int bond_moves = 0xFF;
+        final int n_bonds = world.n_bonds[id];
+        if (n_bonds != 0) {
+            final int bonds[] = world.bonds;
+            final int base = id * GameWorldStore.MAX_BONDS;
+            for (int k = base + n_bonds - 1; k >= base; k--) {
+                final int other = bonds[k];
+                bond_moves &= BOND_MOVES[(world.deltaX(world.x[other] - x) + 1) * 3
+                        + world.deltaY(world.y[other] - y) + 1];
+            }
+            if (bond_moves == 0) {
+                return false;
+            }
+        }
+
         // which of the 8 possible moves is valid? (empty and maintains
-        // bonds)
-        boolean valid_move[] = new boolean[8];
-        int n_valid_moves = 0;
-        int tx, ty;
+        // bonds) - one bit per direction, no allocation
+        final int valid_moves = ~blockedAround(world, x, y) & bond_moves;
+        if (valid_moves != 0) {
+            final int move = pickMove(valid_moves, random);
+
+            // move there
+            world.stepTo(id, world.wrapX(x + EIGHT_X[move]), world.wrapY(y + EIGHT_Y[move]));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * the neighbours of (x, y) that are occupied or outside the world, one bit
+     * per direction
+     */
+    static int blockedAround(GameWorldStore world, int x, int y) {
+        final int lx = x & GameWorldStore.CHUNK_MASK;
+        final int ly = y & GameWorldStore.CHUNK_MASK;
+        if (lx > 0 && lx < GameWorldStore.CHUNK_MASK && ly > 0 && ly < GameWorldStore.CHUNK_MASK) {
+            // all 8 neighbours are in this square's chunk, whose bitmap has
+            // the three columns in adjacent words and the squares past the
+            // edge of the world set
+            final long bits[] = world.chunk_bits[(x >> GameWorldStore.CHUNK_SHIFT) * world.n_cy
+                    + (y >> GameWorldStore.CHUNK_SHIFT)];
+            final int shift = ly - 1;
+            return COLUMN_BLOCKED[(int) (bits[lx - 1] >>> shift) & 7]
+                    | COLUMN_BLOCKED[8 | ((int) (bits[lx] >>> shift) & 7)]
+                    | COLUMN_BLOCKED[16 | ((int) (bits[lx + 1] >>> shift) & 7)];
+        }
+        // on a chunk border read each neighbour through the halo, whose ghost
+        // border covers the squares outside the world
+        final long halo[][] = world.halo;
+        final int stride = world.n_cy + 2;
+        int blocked = 0;
         for (int i = 0; i < 8; i++) {
-            tx = x + EIGHT_X[i];
-            ty = y + EIGHT_Y[i];
-            if (tx >= 0 && tx < n_x && ty >= 0 && ty < n_y && cell_grid[tx][ty].queryEmpty()) {
-                valid_move[i] = true;
-                n_valid_moves++;
-            } else
-                valid_move[i] = false;
+            final int tx = x + EIGHT_X[i];
+            final int ty = y + EIGHT_Y[i];
+            final long bits[] = halo[((tx >> GameWorldStore.CHUNK_SHIFT) + 1) * stride
+                    + (ty >> GameWorldStore.CHUNK_SHIFT) + 1];
+            blocked |= ((int) (bits[tx & GameWorldStore.CHUNK_MASK] >>> (ty & GameWorldStore.CHUNK_MASK)) & 1) << i;
         }
+        return blocked;
+    }
 
-        if (n_valid_moves > 0) {
-            int choices[] = new int[n_valid_moves];
-            int j = 0;
+    /**
+     * the number of occupied squares around (x, y), not counting squares
+     * past the edge of a bounded world
+     */
+    static int neighbours(GameWorldStore world, int x, int y) {
+        int blocked = blockedAround(world, x, y);
+        if (!world.wrap && (x == 0 || y == 0 || x == world.n_x - 1 || y == world.n_y - 1)) {
             for (int i = 0; i < 8; i++) {
-                if (valid_move[i]) {
-                    choices[j++] = i;
+                final int tx = x + EIGHT_X[i];
+                final int ty = y + EIGHT_Y[i];
+                if (tx < 0 || tx >= world.n_x || ty < 0 || ty >= world.n_y) {
+                    blocked &= ~(1 << i);
                 }
             }
-            int which = (int) Math.floor(Math.random() * (float) n_valid_moves);
-            int move = choices[which];
+        }
+        return Integer.bitCount(blocked);
+    }
 
-            // move there
-            moveTo(x + EIGHT_X[move], y + EIGHT_Y[move], cell_grid);
+    static boolean react(GameWorldStore world, int id, ReactionRules rules) {
+        return react(world, id, rules, null);
+    }
+
+    /**
+     * React with the first neighbour, in 8-neighbourhood order, that the
+     * rules have a reaction for. Returns true if there was a reaction. If
+     * census is not null the change of state of both entities is counted in
+     * it, indexed by type * MAX_STATES + state.
+     */
+    static boolean react(GameWorldStore world, int id, ReactionRules rules, int census[]) {
+        final int type = world.type[id];
+        final int state = world.state[id];
+        if (!rules.isReactive(type, state)) {
+            return false;
+        }
+        final int x = world.x[id];
+        final int y = world.y[id];
+        final int around = blockedAround(world, x, y);
+        if (around == 0) {
+            return false;
         }
+        final int lx = x & GameWorldStore.CHUNK_MASK;
+        final int ly = y & GameWorldStore.CHUNK_MASK;
+        // as in blockedAround, away from chunk edges read the chunk
+        final int chunk[] = lx > 0 && lx < GameWorldStore.CHUNK_MASK && ly > 0 && ly < GameWorldStore.CHUNK_MASK
+                ? world.chunks[(x >> GameWorldStore.CHUNK_SHIFT) * world.n_cy + (y >> GameWorldStore.CHUNK_SHIFT)]
+                : null;
+        final int slot = (lx << GameWorldStore.CHUNK_SHIFT) | ly;
+        int tx, ty;
+        for (int bits = around; bits != 0; bits &= bits - 1) {
+            final int i = Integer.numberOfTrailingZeros(bits);
+            final int other;
+            if (chunk != null) {
+                other = chunk[slot + EIGHT_SLOT[i]];
+            } else {
+                tx = world.wrapX(x + EIGHT_X[i]);
+                ty = world.wrapY(y + EIGHT_Y[i]);
+                if (tx < 0 || tx >= world.n_x || ty < 0 || ty >= world.n_y) {
+                    continue;
+                }
+                other = world.occupantAt(tx, ty);
+            }
+            if (other == GameWorldStore.EMPTY) {
+                // a square past the edge of a bounded world
+                continue;
+            }
+            final boolean bonded = world.hasBond(id, other);
+            final int outcome = rules.lookup(type, state, world.type[other], world.state[other], bonded);
+            if (outcome == 0) {
+                continue;
+            }
+            if (ReactionRules.bondedAfter(outcome) && !bonded) {
+                if (!world.canBond(id) || !world.canBond(other)) {
+                    continue;
+                }
+                world.addBond(id, other);
+            } else if (!ReactionRules.bondedAfter(outcome) && bonded) {
+                world.removeBond(id, other);
+            }
+            if (census != null) {
+                final int other_base = world.type[other] * EntityBase.MAX_STATES;
+                census[type * EntityBase.MAX_STATES + state]--;
+                census[type * EntityBase.MAX_STATES + ReactionRules.newStateA(outcome)]++;
+                census[other_base + world.state[other]]--;
+                census[other_base + ReactionRules.newStateB(outcome)]++;
+            }
+            world.stepState(id, ReactionRules.newStateA(outcome));
+            world.stepState(other, ReactionRules.newStateB(outcome));
+            return true;
+        }
+        return false;
+    }
 
+    /**
+     * pick one of the set bits of a non-empty move mask uniformly
+     */
+    static int pickMove(int valid_moves, GameRandom random) {
+        int which = random.nextInt(Integer.bitCount(valid_moves));
+        while (which-- > 0) {
+            // drop the lowest set bit
+            valid_moves &= valid_moves - 1;
+        }
+        return Integer.numberOfTrailingZeros(valid_moves);
+    }
+
+    /**
+     * the directions of an entity's bonded partners, one bit per direction
+     * in the order of the move encoding
+     */
+    static int bondDirections(GameWorldStore world, int id) {
+        int directions = 0;
+        final int base = id * GameWorldStore.MAX_BONDS;
+        for (int k = base + world.n_bonds[id] - 1; k >= base; k--) {
+            final int other = world.bonds[k];
+            directions |= BOND_DIRECTION[(world.deltaX(world.x[other] - world.x[id]) + 1) * 3
+                    + world.deltaY(world.y[other] - world.y[id]) + 1];
+        }
+        return directions;
     }
 
-    private void moveTo(int new_x, int new_y, GameCellSlot cell_grid[][]) {
-        // move there
-        cell_grid[x][y].makeEmpty();
-        x = new_x;
-        y = new_y;
-        cell_grid[x][y].makeOccupied(this);
+    public void draw(Graphics g, float scale, boolean fast) {
+        draw(g, scale, world.x[id], world.y[id], world.type[id], world.state[id], bondDirections(world, id), fast);
     }
 
     /**
-     * Draws the cell
+     * Draws a cell of the given type and state, the position may be
+     * fractional while the cell is sliding between two squares. Each bond is
+     * drawn as a line from the centre to the edge of the square facing the
+     * partner, which draws its own half.
      */
-    public void draw(Graphics g, float scale, GameCellSlot cell_grid[][], boolean fast) {
-        g.setColor(getColour());
+    static void draw(Graphics g, float scale, float x, float y, int type, int state, int bond_directions,
+                     boolean fast) {
+        g.setColor(TYPE_COLOURS[type]);
         g.fillRect((int) (x * scale), (int) (y * scale), (int) scale, (int) scale);
 
         // draw our bonds
@@ -139,12 +336,15 @@ public class Entity extends EntityBase {
         int hx, hy;
         hx = (int) ((x + 0.5) * scale);
         hy = (int) ((y + 0.5) * scale);
+        for (int bits = bond_directions; bits != 0; bits &= bits - 1) {
+            final int i = Integer.numberOfTrailingZeros(bits);
+            g.drawLine(hx, hy, (int) ((x + 0.5 + EIGHT_X[i] * 0.5) * scale),
+                    (int) ((y + 0.5 + EIGHT_Y[i] * 0.5) * scale));
+        }
 
         // draw our state (if enough room)
         if (scale >= 12) {
-            final Integer i = getState();
-            final String type = this.getStringType();
-            final String str = type + i.toString();
+            final String str = getStringType(type) + state;
             g.drawString(str, (int) ((x * scale) + 2), (int) ((y * scale) + scale - 2));
         }
     }
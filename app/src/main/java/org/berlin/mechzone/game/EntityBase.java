@@ -26,50 +26,58 @@ import java.awt.*;
 
 class EntityBase {
 
-    private static final int MAX_TYPES = 6;
-    private static final int MAX_STATES = 11;
+    static final int MAX_TYPES = 6;
+    static final int MAX_STATES = 11;
 
     protected static final int MAX_AGE = 1000;
 
-    private int type;
-    private int state;
-    protected int time_since_last_reaction = 0;
-
-    private Color TYPE_COLOURS[] = {Color.red.brighter(), Color.green, Color.orange, Color.gray,
+    static final Color TYPE_COLOURS[] = {Color.red.brighter(), Color.green, Color.orange, Color.gray,
             Color.cyan, Color.blue.brighter()};
 
-    public static int getRandomType() {
-        return (int) Math.floor(Math.random() * MAX_TYPES);
+    /**
+     * the world store holding this entity's properties, and its id there
+     */
+    protected final GameWorldStore world;
+    protected final int id;
+
+    public static int getRandomType(final GameRandom random) {
+        return random.nextInt(MAX_TYPES);
+    }
+
+    public static int getRandomCodonType(final GameRandom random) {
+        return random.nextInt(MAX_TYPES - 2) + 2;
     }
 
-    public int getRandomCodonType() {
-        return (int) Math.floor(Math.random() * (MAX_TYPES - 2)) + 2;
+    public static int getRandomState(final GameRandom random) {
+        return random.nextInt(MAX_STATES);
     }
 
-    public int getRandomState() {
-        return (int) Math.floor(Math.random() * MAX_STATES);
+    public EntityBase(GameWorldStore world, int id) {
+        this.world = world;
+        this.id = id;
     }
 
-    public EntityBase(int t, int s) {
-        if (t < 0 || t >= MAX_TYPES)
-            throw new Error("CellProperties : type not in valid range");
-        type = t;
-        state = s;
+    public int getId() {
+        return id;
     }
 
     public Color getColour() {
-        return TYPE_COLOURS[type];
+        return TYPE_COLOURS[world.type[id]];
     }
 
     public int getType() {
-        return type;
+        return world.type[id];
     }
 
     public int getState() {
-        return state;
+        return world.state[id];
     }
 
     public String getStringType() {
+        return getStringType(world.type[id]);
+    }
+
+    public static String getStringType(int type) {
         switch (type) {
             case 0:
                 return "e";
@@ -89,19 +97,19 @@ class EntityBase {
     }
 
     public int getTimeSinceLastReaction() {
-        return time_since_last_reaction;
+        return world.time_since_last_reaction[id];
     }
 
     public boolean isType(int t) {
-        return type == t;
+        return world.type[id] == t;
     }
 
     public boolean isType(char t) {
-        return type == getType(t);
+        return world.type[id] == getType(t);
     }
 
     public boolean isState(int s) {
-        return state == s;
+        return world.state[id] == s;
     }
 
     public boolean isTypeAndState(int t, int s) {
@@ -113,11 +121,9 @@ class EntityBase {
     }
 
     public void setState(int s) {
-        // if this is a change then reset counter
-        if (state != s) {
-            time_since_last_reaction = 0;
-            state = s;
-        }
+        if (s < 0 || s >= MAX_STATES)
+            throw new Error("CellProperties : state not in valid range");
+        world.setState(id, s);
     }
 
     public static int getType(char t) {
@@ -140,7 +146,8 @@ class EntityBase {
     }
 
     public String toString() {
-        return "[Super.Base : " + getStringType() + state + " / type=" + getStringType() + " state=" + state + "]";
+        return "[Super.Base : " + getStringType() + getState() + " / type=" + getStringType()
+                + " state=" + getState() + "]";
     }
 
 } // End of the class //
\ No newline at end of file
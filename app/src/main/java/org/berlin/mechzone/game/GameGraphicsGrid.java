@@ -24,56 +24,130 @@
 package org.berlin.mechzone.game;
 
 import java.awt.Graphics;
-import java.util.Enumeration;
-import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
 
 /**
- * The class manages a 2D grid of SquirmCellSlots and a list of
- * SquirmCells.
+ * The class manages a 2D grid world held in a packed GameWorldStore.
  */
 public class GameGraphicsGrid {
 
     /**
-     * Array of SquirmCellSlots that may or may not have SquirmCells in
+     * packed occupancy and per-entity arrays for the world
      */
-    protected GameCellSlot cell_grid[][];
+    protected GameWorldStore world;
 
     /**
-     * the x and y size of the cell_grid array
+     * the x and y size of the world
      */
     protected int n_x, n_y;
 
     /**
-     * list of the SquirmCells that exist in the grid
+     * a count of the time steps elapsed
      */
-    protected Vector<Entity> cell_list;
+    private int count = 0;
+
+    public static final int N_CELLS = 200;
 
     /**
-     * a count of the time steps elapsed
+     * squares a side must have to hold the starting chain, which runs down
+     * the world
      */
-    private int count = 0;
+    public static final int MIN_SIZE = 5;
+
+    /**
+     * number of raw material molecules initSimple tries to place
+     */
+    protected final int n_cells;
+
+    /**
+     * random number source for this world, never shared with other worlds
+     */
+    protected GameRandom random;
+
+    /**
+     * stripe-parallel stepper, null when stepping in strict sequential order
+     */
+    protected ParallelTickEngine parallel = null;
+    private boolean owns_pool = false;
+
+    /**
+     * reactions tried before each move, null for none
+     */
+    protected volatile ReactionRules reactions = null;
+    private long reaction_count = 0;
+
+    /**
+     * the reactions the last time step ran with, so a change of rules can
+     * wake the sleeping chunks on the stepping thread
+     */
+    private ReactionRules stepped_reactions = null;
 
-    private static final int N_CELLS = 200;
+    /**
+     * awake cells given a chance to move, in all time steps so far
+     */
+    private long move_attempts = 0;
+
+    /**
+     * running statistics kept by the time step, null for none
+     */
+    protected TickStatistics statistics = null;
 
     public int getCount() {
         return count;
     }
 
+    public GameWorldStore getWorld() {
+        return world;
+    }
+
+    public GameRandom getRandom() {
+        return random;
+    }
+
+    public ReactionRules getReactionRules() {
+        return reactions;
+    }
+
+    /**
+     * Use a new set of reactions from the next time step on, or none if
+     * null. Safe to call while another thread is stepping the grid; the
+     * next time step wakes every chunk, since sleeping ones may now have
+     * something to react with.
+     */
+    public void setReactionRules(final ReactionRules rules) {
+        reactions = rules;
+    }
+
+    /**
+     * reactions since the grid was created
+     */
+    public long getReactionCount() {
+        return reaction_count;
+    }
+
+    /**
+     * awake cells given a chance to move since the grid was created; cells in
+     * sleeping chunks are skipped and not counted
+     */
+    public long getMoveAttempts() {
+        return move_attempts;
+    }
+
     public String getContents(int x, int y) {
         // check for within area
         if (x < 0 || x >= n_x || y < 0 || y >= n_y)
             return "";
 
         // check cell slot not empty
-        if (cell_grid[x][y].queryEmpty()) {
+        if (world.queryEmpty(x, y)) {
             return "";
         }
 
         String msg = "";
-        Entity cell = cell_grid[x][y].getOccupant();
-        msg += cell.getStringType();
-        msg += cell.getState();
-        // msg+=" ("+cell.getTimeSinceLastReaction()+")";
+        final int id = world.getOccupant(x, y);
+        msg += EntityBase.getStringType(world.getType(id));
+        msg += world.getState(id);
+        // msg+=" ("+world.getTimeSinceLastReaction(id)+")";
         return msg;
     }
 
@@ -81,39 +155,80 @@ public class GameGraphicsGrid {
      * Public constructor initializes size of grid and creates a simple world
      */
     public GameGraphicsGrid(int x, int y) {
+        this(x, y, new XoroshiroRandom(System.nanoTime()));
+    }
+
+    /**
+     * Create a simple world drawing all of its randomness from the given
+     * generator, so a fixed seed reproduces the run.
+     */
+    public GameGraphicsGrid(int x, int y, GameRandom random) {
+        this(x, y, N_CELLS, random);
+    }
+
+    /**
+     * Create a simple world with the given amount of raw material.
+     */
+    public GameGraphicsGrid(int x, int y, int cells, GameRandom random) {
+        this(x, y, cells, false, random);
+    }
+
+    /**
+     * Create a simple world with the given amount of raw material, bounded
+     * or wrapping around into a torus.
+     */
+    public GameGraphicsGrid(int x, int y, int cells, boolean wrap, GameRandom random) {
+        if (x < MIN_SIZE || y < MIN_SIZE)
+            throw new Error("GameGraphicsGrid : a world must be at least " + MIN_SIZE + "x" + MIN_SIZE
+                    + " squares, was " + x + "x" + y);
         n_x = x;
         n_y = y;
+        n_cells = cells;
+        this.random = random;
 
-        // initialize the 2D grid of slots
-        cell_grid = new GameCellSlot[n_x][n_y];
-        int i, j;
-        for (i = 0; i < n_x; i++) {
-            for (j = 0; j < n_y; j++) {
-                cell_grid[i][j] = new GameCellSlot();
-            }
-        }
-
-        cell_list = new Vector<>();
+        world = new GameWorldStore(n_x, n_y, n_cells + 5, wrap);
         initSimple();
     }
 
+    /**
+     * Wrap a world that already exists, such as one read from a file,
+     * resuming at the given time step.
+     */
+    public GameGraphicsGrid(GameWorldStore world, int count, GameRandom random) {
+        this.world = world;
+        n_x = world.getSizeX();
+        n_y = world.getSizeY();
+        n_cells = world.size();
+        this.count = count;
+        this.random = random;
+    }
+
     // ----------------------------------------------------------
 
     /**
      * straightforward drawing of the grid and its contents
      */
     public void draw(final Graphics g, float scale, boolean fast) {
-        // ask all the cells to draw themselves
-        for (final Enumeration<Entity> e = cell_list.elements(); e.hasMoreElements(); ) {
-            ((Entity) e.nextElement()).draw(g, scale, cell_grid, fast);
-        }
-
-
+        drawCells(g, scale, fast);
 
         // draw the time step counter on top (to the farthest to the front)
         g.drawString(String.valueOf(count), 10, 10);
     }
 
+    /**
+     * ask all the cells to draw themselves
+     */
+    public void drawCells(final Graphics g, float scale, boolean fast) {
+        final int n = world.getIdLimit();
+        for (int id = 0; id < n; id++) {
+            if (world.type[id] == GameWorldStore.FREE) {
+                continue;
+            }
+            Entity.draw(g, scale, world.x[id], world.y[id], world.type[id], world.state[id],
+                    world.n_bonds[id] == 0 ? 0 : Entity.bondDirections(world, id), fast);
+        }
+    }
+
     // ----------------------------------------------------------
 
     /**
@@ -121,37 +236,123 @@ public class GameGraphicsGrid {
      */
     public void initSimple() {
         // initialise an arbitrarily long string        
-        // initialise a long string
+        // initialise a long string, e8-a1-b1-c1-f1 bonded head to tail
         {
-            Entity e = new Entity(10, n_y / 2 + 0, 0, 8, cell_list, cell_grid);
-            Entity a = new Entity(10, n_y / 2 + 1, 2, 1, cell_list, cell_grid);
-            Entity b = new Entity(10, n_y / 2 + 2, 3, 1, cell_list, cell_grid);
-            Entity c = new Entity(10, n_y / 2 + 3, 4, 1, cell_list, cell_grid);
-            Entity f = new Entity(10, n_y / 2 + 4, 1, 1, cell_list, cell_grid);
+            final int chain_type[] = { 0, 2, 3, 4, 1 };
+            final int chain_state[] = { 8, 1, 1, 1, 1 };
+            // ten squares in from the left, half way down, or as near as fits
+            final int chain_x = Math.min(10, n_x / 2);
+            final int chain_y = Math.min(n_y / 2, n_y - chain_type.length);
+            int prev = GameWorldStore.EMPTY;
+            for (int i = 0; i < chain_type.length; i++) {
+                final int id = world.add(chain_x, chain_y + i, chain_type[i], chain_state[i]);
+                if (prev != GameWorldStore.EMPTY) {
+                    world.addBond(prev, id);
+                }
+                prev = id;
+            }
         }
 
         // initialize the world with some raw material (unconnected molecules)
-        int px, py;
-        for (int i = 0; i < N_CELLS; i++) {
-            // find an empty square
-            px = (int) Math.floor(Math.random() * (float) n_x);
-            py = (int) Math.floor(Math.random() * (float) n_y);
-            if (cell_grid[px][py].queryEmpty()) {
-                new Entity(px, py, EntityBase.getRandomType(), 0, cell_list, cell_grid);
-            }
+        // an even mix of the types, exactly n_cells of them or as many as fit
+        final int n = (int) Math.min(n_cells, (long) n_x * n_y - world.size());
+        final WorldPopulator raw = new WorldPopulator(world);
+        for (int t = 0; t < EntityBase.MAX_TYPES; t++) {
+            raw.add(t, 0, n / EntityBase.MAX_TYPES + (t < n % EntityBase.MAX_TYPES ? 1 : 0));
         }
+        raw.populate(random, null);
         // just for now, add extra 'a' cells to help memebrane growth along        
     }
 
     /**
-     * give each cell a chance to move, in strict order
+     * Keep the statistics up to date as each time step runs, null to stop.
+     * Must be called between time steps.
+     */
+    public void setStatistics(final TickStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    public TickStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Switch to the stripe-parallel time step on a new pool of the given
+     * size. For a fixed seed every thread count gives the same world; zero
+     * goes back to the strict sequential order.
      */
-    public void doTimeStep() {
-        Entity cell;
-        for (final Enumeration<Entity> e = cell_list.elements(); e.hasMoreElements(); ) {
-            cell = (Entity) e.nextElement();
-            cell.makeMove(n_x, n_y, cell_grid);
+    public void setParallelism(int threads) {
+        setParallelPool(threads > 0 ? new ForkJoinPool(threads) : null);
+        owns_pool = threads > 0;
+    }
+
+    /**
+     * Step in parallel on the given pool, or sequentially if it is null.
+     */
+    public void setParallelPool(final ForkJoinPool pool) {
+        if (parallel != null && owns_pool) {
+            parallel.getPool().shutdown();
+        }
+        owns_pool = false;
+        parallel = pool == null ? null : new ParallelTickEngine(world, pool);
+    }
+
+    /**
+     * give each cell a chance to react and then to move, in strict order or
+     * stripe by stripe, returns the number of cells that moved
+     */
+    public int doTimeStep() {
+        int moves = 0;
+        final ReactionRules rules = reactions;
+        final TickStatistics stats = statistics;
+        final int stripes = parallel != null ? parallel.getStripeCount() : 1;
+        if (rules != stepped_reactions) {
+            stepped_reactions = rules;
+            world.wakeAll();
+        }
+        world.beginTick();
+        if (stats != null) {
+            stats.beginTick(stripes);
+        }
+        if (parallel != null) {
+            // drawn every tick, so the world's generator state is all a
+            // saved run needs to carry on the same
+            moves = parallel.step(random.nextLong(), rules, stats);
+            reaction_count += parallel.getReactions();
+            move_attempts += parallel.getMoveAttempts();
+        } else {
+            final TickStatistics.Tally tally = stats != null ? stats.tally(0) : null;
+            final int census[] = tally != null ? tally.census : null;
+            long square_delta = 0;
+            final int n = world.getIdLimit();
+            for (int id = 0; id < n; id++) {
+                // a sleeping chunk's entities have nowhere to go and nothing
+                // to react with
+                if (world.type[id] == GameWorldStore.FREE || !world.isAwake(id)) {
+                    continue;
+                }
+                move_attempts++;
+                if (rules != null && Entity.react(world, id, rules, census)) {
+                    reaction_count++;
+                }
+                final int from_x = world.x[id];
+                final int from_y = world.y[id];
+                if (Entity.makeMove(world, id, random)) {
+                    moves++;
+                    if (tally != null) {
+                        square_delta += stats.moved(id, from_x, from_y);
+                    }
+                }
+            }
+            if (tally != null) {
+                tally.square_sum += square_delta;
+            }
+        }
+        if (stats != null) {
+            stats.endTick(stripes);
         }
+        count++;
+        return moves;
     }
 
 } // End of the class //
\ No newline at end of file
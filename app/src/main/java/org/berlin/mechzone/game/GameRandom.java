@@ -0,0 +1,51 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+/**
+ * Source of random numbers for the simulation. Each world, or each partition
+ * of a world, owns its own generator so no state is shared between threads.
+ */
+public interface GameRandom {
+
+    /**
+     * next 64 random bits
+     */
+    long nextLong();
+
+    /**
+     * uniform value in [0, bound), bound must be positive
+     */
+    int nextInt(int bound);
+
+    /**
+     * uniform value in [0, 1)
+     */
+    double nextDouble();
+
+    /**
+     * reset the generator so it repeats the sequence for the given seed
+     */
+    void setSeed(long seed);
+
+} // End of the interface //
\ No newline at end of file
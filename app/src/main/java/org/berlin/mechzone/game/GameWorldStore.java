@@ -0,0 +1,990 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.util.Arrays;
+
+/**
+ * Packed world store. Holds the per-entity properties in parallel primitive
+ * arrays, indexed by entity id, and the occupancy of the squares in chunks of
+ * CHUNK_SIZE x CHUNK_SIZE. Entity and EntityBase are thin views over an id in
+ * this store.
+ *
+ * A chunk's occupancy array only exists while the chunk holds an entity, so
+ * empty parts of the world take no memory. Next to it is an occupancy bitmap
+ * of one long per chunk column, which the move kernel reads to find the free
+ * neighbours of a square. Each chunk also has an awake flag:
+ * a chunk goes to sleep after a tick in which nothing in it or on its
+ * one-square border changed. Then none of its entities had a free square
+ * last tick and none can have one now, so the tick skips them. Any change on
+ * or next to a chunk wakes it at once.
+ *
+ * The world is either bounded or a torus, whose sides must then be whole
+ * chunks. The bitmaps are also reachable through halo, a grid of chunks
+ * with a one-chunk ghost border: on a bounded world the border and the
+ * squares of the last chunks that lie past the edge read as occupied, on a
+ * torus the border is the chunks from the opposite side. Any neighbour of
+ * any square can then be read without testing for the edge.
+ */
+public class GameWorldStore {
+
+    /**
+     * occupancy value of a square with no entity in it
+     */
+    public static final int EMPTY = -1;
+
+    /**
+     * type of an id that holds no entity and is free for reuse
+     */
+    public static final int FREE = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * most bonds one entity can hold
+     */
+    public static final int MAX_BONDS = 4;
+
+    static final int CHUNK_SHIFT = 6;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * number of (type, state) pairs, an entity's kind is
+     * type * MAX_STATES + state
+     */
+    static final int KINDS = EntityBase.MAX_TYPES * EntityBase.MAX_STATES;
+
+    /**
+     * chunks are split into BLOCKS x BLOCKS blocks of 1 << BLOCK_SHIFT
+     * squares a side for the per-block type counts
+     */
+    static final int BLOCK_SHIFT = 3;
+    static final int BLOCKS = CHUNK_SIZE >> BLOCK_SHIFT;
+
+    /**
+     * the x and y size of the world
+     */
+    protected final int n_x, n_y;
+
+    /**
+     * the number of chunks along x and y
+     */
+    protected final int n_cx, n_cy;
+
+    /**
+     * true if the world wraps around on both axes, and then n_x and n_y,
+     * which a step off one side adds or takes away; 0 on a bounded world
+     */
+    protected final boolean wrap;
+    protected final int torus_x, torus_y;
+
+    /**
+     * entity id per square or EMPTY, one array per chunk indexed by
+     * cx * n_cy + cy, null while the chunk is empty. Inside a chunk the
+     * square (x, y) is at (x & CHUNK_MASK) << CHUNK_SHIFT | (y & CHUNK_MASK).
+     */
+    protected final int chunks[][];
+    protected final int chunk_count[];
+
+    /**
+     * entities of each kind per chunk, chunk c's counts at c * KINDS
+     */
+    protected final int chunk_kinds[];
+
+    /**
+     * entities of each type per block, BLOCKS * BLOCKS * MAX_TYPES counts
+     * per chunk allocated and freed with the chunk's array, at blockSlot of
+     * the square plus the type; a zoomed out view reads these instead of the
+     * squares. Null until trackBlocks, as keeping them costs every move.
+     */
+    protected byte chunk_blocks[][] = null;
+
+    /**
+     * The same occupancy as one bit per square, CHUNK_SIZE words per chunk
+     * allocated and freed with the chunk's array: bit (y & CHUNK_MASK) of
+     * word (x & CHUNK_MASK) is set while (x, y) is occupied. A square's
+     * three neighbouring columns are three adjacent words.
+     */
+    protected final long chunk_bits[][];
+
+    /**
+     * the bitmaps of all the chunks with a ghost border one chunk wide,
+     * chunk (cx, cy) at (cx + 1) * (n_cy + 2) + cy + 1; an empty chunk has a
+     * shared bitmap with only its squares past the edge set
+     */
+    protected final long halo[][];
+
+    /**
+     * bitmaps of empty chunks, with the squares past the edge of the world
+     * set in the last column and row of chunks
+     */
+    private final long empty_bits[], empty_right[], empty_bottom[], empty_corner[];
+
+    /**
+     * chunks awake this tick, and chunks woken for the next one
+     */
+    protected boolean chunk_awake[];
+    protected boolean chunk_awake_next[];
+
+    /**
+     * per-entity properties, indexed by entity id
+     */
+    protected byte type[];
+    protected byte state[];
+    protected int x[], y[];
+    protected int last_x[], last_y[];
+    protected int time_since_last_reaction[];
+
+    /**
+     * bonded partners, MAX_BONDS slots per entity: the partners of id are
+     * bonds[id * MAX_BONDS] .. bonds[id * MAX_BONDS + n_bonds[id] - 1]
+     */
+    protected int bonds[];
+    protected byte n_bonds[];
+
+    /**
+     * ids run from 0 to n_ids - 1, n_live of them hold an entity and the
+     * rest are FREE
+     */
+    protected int n_ids = 0;
+    protected int n_live = 0;
+
+    /**
+     * bumped whenever entities are added, removed, moved or change state
+     * outside the tick's own moves, so whatever keeps running totals over
+     * the world can tell it has to count again
+     */
+    protected long edits = 0;
+
+    /**
+     * ticks begun, together with edits this changes whenever the world has
+     */
+    protected long ticks = 0;
+
+    /**
+     * One bit per FREE id. A new entity takes the lowest free id, so which
+     * id is reused depends only on which ids are free and not on the order
+     * they were freed in, and a world read back from a file or a journal
+     * hands out the same ids as the original.
+     */
+    private long free_ids[];
+    private int n_free = 0;
+
+    /**
+     * no free id is below this word of free_ids
+     */
+    private int first_free_word = 0;
+
+    public GameWorldStore(int size_x, int size_y, int capacity) {
+        this(size_x, size_y, capacity, false);
+    }
+
+    /**
+     * a world that is bounded, or wraps around into a torus
+     */
+    public GameWorldStore(int size_x, int size_y, int capacity, boolean wrap) {
+        if (size_x < 1 || size_y < 1 || (long) size_x * size_y > Integer.MAX_VALUE)
+            throw new Error("GameWorldStore : bad world size " + size_x + "x" + size_y);
+        if (wrap && ((size_x | size_y) & CHUNK_MASK) != 0)
+            throw new Error("GameWorldStore : a torus must be a multiple of " + CHUNK_SIZE + " squares on each side");
+        n_x = size_x;
+        n_y = size_y;
+        this.wrap = wrap;
+        torus_x = wrap ? n_x : 0;
+        torus_y = wrap ? n_y : 0;
+        n_cx = (n_x + CHUNK_MASK) >> CHUNK_SHIFT;
+        n_cy = (n_y + CHUNK_MASK) >> CHUNK_SHIFT;
+        chunks = new int[n_cx * n_cy][];
+        chunk_bits = new long[n_cx * n_cy][];
+        chunk_count = new int[n_cx * n_cy];
+        chunk_kinds = new int[n_cx * n_cy * KINDS];
+        chunk_awake = new boolean[n_cx * n_cy];
+        chunk_awake_next = new boolean[n_cx * n_cy];
+        Arrays.fill(chunk_awake, true);
+        Arrays.fill(chunk_awake_next, true);
+
+        // squares past the edge are never free
+        final long past_y = n_y % CHUNK_SIZE == 0 ? 0 : -1L << (n_y & CHUNK_MASK);
+        final int past_x = n_x % CHUNK_SIZE == 0 ? CHUNK_SIZE : n_x & CHUNK_MASK;
+        empty_bits = new long[CHUNK_SIZE];
+        empty_right = new long[CHUNK_SIZE];
+        empty_bottom = new long[CHUNK_SIZE];
+        empty_corner = new long[CHUNK_SIZE];
+        Arrays.fill(empty_right, past_x, CHUNK_SIZE, -1L);
+        Arrays.fill(empty_bottom, past_y);
+        Arrays.fill(empty_corner, past_y);
+        Arrays.fill(empty_corner, past_x, CHUNK_SIZE, -1L);
+        halo = new long[(n_cx + 2) * (n_cy + 2)][];
+        final long full[] = new long[CHUNK_SIZE];
+        Arrays.fill(full, -1L);
+        Arrays.fill(halo, full);
+        for (int c = 0; c < n_cx * n_cy; c++) {
+            setHalo(c);
+        }
+
+        final int cap = Math.max(capacity, MIN_CAPACITY);
+        type = new byte[cap];
+        state = new byte[cap];
+        x = new int[cap];
+        y = new int[cap];
+        last_x = new int[cap];
+        last_y = new int[cap];
+        time_since_last_reaction = new int[cap];
+        bonds = new int[cap * MAX_BONDS];
+        n_bonds = new byte[cap];
+        free_ids = new long[(cap >> 6) + 1];
+    }
+
+    public int getSizeX() {
+        return n_x;
+    }
+
+    public int getSizeY() {
+        return n_y;
+    }
+
+    /**
+     * true if the world wraps around into a torus
+     */
+    public boolean isWrapped() {
+        return wrap;
+    }
+
+    /**
+     * an x coordinate at most one step outside the world brought back in
+     * on a torus, unchanged on a bounded world
+     */
+    final int wrapX(int px) {
+        return px + (torus_x & (px >> 31)) - (torus_x & ((n_x - 1 - px) >> 31));
+    }
+
+    final int wrapY(int py) {
+        return py + (torus_y & (py >> 31)) - (torus_y & ((n_y - 1 - py) >> 31));
+    }
+
+    /**
+     * The x offset between two neighbours, -1, 0 or 1. On a torus a pair
+     * across the seam is n_x - 1 apart and comes back as one step.
+     */
+    final int deltaX(int dx) {
+        return dx + (torus_x & ((dx + 1) >> 31)) - (torus_x & ((1 - dx) >> 31));
+    }
+
+    final int deltaY(int dy) {
+        return dy + (torus_y & ((dy + 1) >> 31)) - (torus_y & ((1 - dy) >> 31));
+    }
+
+    /**
+     * number of entities in the world
+     */
+    public int size() {
+        return n_live;
+    }
+
+    /**
+     * every entity id is below this, loops over ids run up to it and skip
+     * the ids that are not live
+     */
+    public int getIdLimit() {
+        return n_ids;
+    }
+
+    public boolean isLive(int id) {
+        return id >= 0 && id < n_ids && type[id] != FREE;
+    }
+
+    /**
+     * flat index of a square, x * n_y + y
+     */
+    public int index(int px, int py) {
+        return px * n_y + py;
+    }
+
+    public boolean queryEmpty(int px, int py) {
+        return occupantAt(px, py) == EMPTY;
+    }
+
+    /**
+     * id of the entity at a square, the square must be occupied
+     */
+    public int getOccupant(int px, int py) {
+        final int id = occupantAt(px, py);
+        if (id == EMPTY) {
+            throw new Error("getOccupant : no occupant!");
+        }
+        return id;
+    }
+
+    /**
+     * id of the entity at a square inside the world, or EMPTY
+     */
+    public int occupantAt(int px, int py) {
+        final int chunk[] = chunks[(px >> CHUNK_SHIFT) * n_cy + (py >> CHUNK_SHIFT)];
+        return chunk == null ? EMPTY : chunk[((px & CHUNK_MASK) << CHUNK_SHIFT) | (py & CHUNK_MASK)];
+    }
+
+    public int getChunkCountX() {
+        return n_cx;
+    }
+
+    public int getChunkCountY() {
+        return n_cy;
+    }
+
+    /**
+     * number of entities in a chunk
+     */
+    public int getChunkEntityCount(int cx, int cy) {
+        return chunk_count[cx * n_cy + cy];
+    }
+
+    public boolean isChunkAwake(int cx, int cy) {
+        return chunk_awake[cx * n_cy + cy];
+    }
+
+    /**
+     * true if the entity's chunk is awake this tick
+     */
+    boolean isAwake(int id) {
+        return chunk_awake[(x[id] >> CHUNK_SHIFT) * n_cy + (y[id] >> CHUNK_SHIFT)];
+    }
+
+    /**
+     * Start a new tick: the chunks woken during the last one are awake now,
+     * the rest sleep.
+     */
+    public void beginTick() {
+        final boolean awake[] = chunk_awake;
+        chunk_awake = chunk_awake_next;
+        chunk_awake_next = awake;
+        Arrays.fill(chunk_awake_next, false);
+        ticks++;
+    }
+
+    /**
+     * Wake every chunk for this tick and the next, for a change such as new
+     * reaction rules that may let sleeping entities react. Must run on the
+     * thread that steps the world, between ticks.
+     */
+    public void wakeAll() {
+        Arrays.fill(chunk_awake, true);
+        Arrays.fill(chunk_awake_next, true);
+    }
+
+    /**
+     * wake every chunk whose square or one-square border holds the given
+     * square, for this tick and the next
+     */
+    public void wake(int px, int py) {
+        final int cx = px >> CHUNK_SHIFT;
+        final int cy = py >> CHUNK_SHIFT;
+        final int lx = px & CHUNK_MASK;
+        final int ly = py & CHUNK_MASK;
+        if (lx > 0 && lx < CHUNK_MASK && ly > 0 && ly < CHUNK_MASK) {
+            // away from the chunk border, only this chunk sees the square
+            chunk_awake[cx * n_cy + cy] = true;
+            chunk_awake_next[cx * n_cy + cy] = true;
+            return;
+        }
+        // on a torus the chunks past the edge are the ones on the other side
+        final int cx0 = lx == 0 && (cx > 0 || wrap) ? cx - 1 : cx;
+        final int cx1 = lx == CHUNK_MASK && (cx < n_cx - 1 || wrap) ? cx + 1 : cx;
+        final int cy0 = ly == 0 && (cy > 0 || wrap) ? cy - 1 : cy;
+        final int cy1 = ly == CHUNK_MASK && (cy < n_cy - 1 || wrap) ? cy + 1 : cy;
+        for (int i = cx0; i <= cx1; i++) {
+            final int wi = i < 0 ? n_cx - 1 : i == n_cx ? 0 : i;
+            for (int j = cy0; j <= cy1; j++) {
+                final int wj = j < 0 ? n_cy - 1 : j == n_cy ? 0 : j;
+                chunk_awake[wi * n_cy + wj] = true;
+                chunk_awake_next[wi * n_cy + wj] = true;
+            }
+        }
+    }
+
+    private void setOccupant(int px, int py, int id) {
+        final int c = (px >> CHUNK_SHIFT) * n_cy + (py >> CHUNK_SHIFT);
+        int chunk[] = chunks[c];
+        if (chunk == null) {
+            chunk = newChunk(c);
+        }
+        chunk[((px & CHUNK_MASK) << CHUNK_SHIFT) | (py & CHUNK_MASK)] = id;
+        chunk_bits[c][px & CHUNK_MASK] |= 1L << (py & CHUNK_MASK);
+        chunk_count[c]++;
+        chunk_kinds[c * KINDS + type[id] * EntityBase.MAX_STATES + state[id]]++;
+        if (chunk_blocks != null) {
+            chunk_blocks[c][blockSlot(px, py) + type[id]]++;
+        }
+        wake(px, py);
+    }
+
+    private void clearOccupant(int px, int py) {
+        final int c = (px >> CHUNK_SHIFT) * n_cy + (py >> CHUNK_SHIFT);
+        final int slot = ((px & CHUNK_MASK) << CHUNK_SHIFT) | (py & CHUNK_MASK);
+        final int id = chunks[c][slot];
+        chunk_kinds[c * KINDS + type[id] * EntityBase.MAX_STATES + state[id]]--;
+        if (chunk_blocks != null) {
+            chunk_blocks[c][blockSlot(px, py) + type[id]]--;
+        }
+        chunks[c][slot] = EMPTY;
+        chunk_bits[c][px & CHUNK_MASK] &= ~(1L << (py & CHUNK_MASK));
+        if (--chunk_count[c] == 0) {
+            // empty chunks take no memory
+            chunks[c] = null;
+            chunk_bits[c] = null;
+            if (chunk_blocks != null) {
+                chunk_blocks[c] = null;
+            }
+            setHalo(c);
+        }
+        wake(px, py);
+    }
+
+    private int[] newChunk(int c) {
+        final int chunk[] = new int[CHUNK_SIZE * CHUNK_SIZE];
+        Arrays.fill(chunk, EMPTY);
+        chunks[c] = chunk;
+        chunk_bits[c] = emptyBits(c).clone();
+        if (chunk_blocks != null) {
+            chunk_blocks[c] = new byte[BLOCKS * BLOCKS * EntityBase.MAX_TYPES];
+        }
+        setHalo(c);
+        return chunk;
+    }
+
+    /**
+     * Start keeping the per-block type counts, counting what is there now.
+     * Must run on the thread that steps the world, between ticks.
+     */
+    void trackBlocks() {
+        if (chunk_blocks != null) {
+            return;
+        }
+        final byte blocks[][] = new byte[n_cx * n_cy][];
+        for (int c = 0; c < blocks.length; c++) {
+            if (chunks[c] != null) {
+                blocks[c] = new byte[BLOCKS * BLOCKS * EntityBase.MAX_TYPES];
+            }
+        }
+        for (int id = 0; id < n_ids; id++) {
+            if (type[id] != FREE) {
+                blocks[(x[id] >> CHUNK_SHIFT) * n_cy + (y[id] >> CHUNK_SHIFT)][blockSlot(x[id], y[id]) + type[id]]++;
+            }
+        }
+        chunk_blocks = blocks;
+    }
+
+    /**
+     * where the type counts of the block holding a square start in its
+     * chunk's chunk_blocks
+     */
+    static int blockSlot(int px, int py) {
+        return ((((px & CHUNK_MASK) >> BLOCK_SHIFT) * BLOCKS) + ((py & CHUNK_MASK) >> BLOCK_SHIFT))
+                * EntityBase.MAX_TYPES;
+    }
+
+    /**
+     * the bitmap of chunk c while it is empty
+     */
+    private long[] emptyBits(int c) {
+        final boolean right = c / n_cy == n_cx - 1;
+        final boolean bottom = c % n_cy == n_cy - 1;
+        return right ? (bottom ? empty_corner : empty_right) : (bottom ? empty_bottom : empty_bits);
+    }
+
+    /**
+     * point the chunk's places in the halo, the ghost border's too on a
+     * torus, at its bitmap
+     */
+    private void setHalo(int c) {
+        final long bits[] = chunk_bits[c] != null ? chunk_bits[c] : emptyBits(c);
+        final int cx = c / n_cy;
+        final int cy = c % n_cy;
+        final int step_x = wrap ? n_cx : n_cx + 2;
+        final int step_y = wrap ? n_cy : n_cy + 2;
+        for (int gx = (cx + 1) % step_x; gx < n_cx + 2; gx += step_x) {
+            for (int gy = (cy + 1) % step_y; gy < n_cy + 2; gy += step_y) {
+                halo[gx * (n_cy + 2) + gy] = bits;
+            }
+        }
+    }
+
+    /**
+     * Place a new entity on an empty square and return its id.
+     */
+    public int add(int px, int py, int cell_type, int cell_state) {
+        final int id = tryAdd(px, py, cell_type, cell_state);
+        if (id == EMPTY) {
+            // couldn't create! (square was occupied)
+            throw new Error("Couldn't create, square is occupied!");
+        }
+        return id;
+    }
+
+    /**
+     * Place a new entity and return its id, or EMPTY if the square is
+     * occupied or outside the world. The id is the lowest free one.
+     */
+    public int tryAdd(int px, int py, int cell_type, int cell_state) {
+        if (cell_type < 0 || cell_type >= EntityBase.MAX_TYPES)
+            throw new Error("CellProperties : type not in valid range");
+        if (cell_state < 0 || cell_state >= EntityBase.MAX_STATES)
+            throw new Error("CellProperties : state not in valid range");
+        if (px < 0 || px >= n_x || py < 0 || py >= n_y || occupantAt(px, py) != EMPTY) {
+            return EMPTY;
+        }
+        final int id;
+        if (n_free > 0) {
+            int w = first_free_word;
+            while (free_ids[w] == 0) {
+                w++;
+            }
+            first_free_word = w;
+            id = (w << 6) | Long.numberOfTrailingZeros(free_ids[w]);
+            free_ids[w] &= free_ids[w] - 1;
+            n_free--;
+        } else {
+            if (n_ids == type.length) {
+                grow();
+            }
+            id = n_ids++;
+        }
+        place(id, px, py, cell_type, cell_state);
+        return id;
+    }
+
+    /**
+     * Add an entity under a given id, which must be free or not yet used;
+     * for replaying a journal, which records the ids.
+     */
+    void addAt(int id, int px, int py, int cell_type, int cell_state) {
+        if (cell_type < 0 || cell_type >= EntityBase.MAX_TYPES)
+            throw new Error("addAt : type not in valid range");
+        if (cell_state < 0 || cell_state >= EntityBase.MAX_STATES)
+            throw new Error("addAt : state not in valid range");
+        if (px < 0 || px >= n_x || py < 0 || py >= n_y || occupantAt(px, py) != EMPTY)
+            throw new Error("addAt : square is occupied!");
+        if (id < n_ids) {
+            if (type[id] != FREE)
+                throw new Error("addAt : id " + id + " is in use");
+            free_ids[id >> 6] &= ~(1L << id);
+            n_free--;
+        } else {
+            ensureCapacity(id + 1);
+            // the ids skipped over are free
+            for (int skipped = n_ids; skipped < id; skipped++) {
+                type[skipped] = FREE;
+                freeId(skipped);
+            }
+            n_ids = id + 1;
+        }
+        place(id, px, py, cell_type, cell_state);
+    }
+
+    private void place(int id, int px, int py, int cell_type, int cell_state) {
+        type[id] = (byte) cell_type;
+        state[id] = (byte) cell_state;
+        x[id] = px;
+        y[id] = py;
+        last_x[id] = px;
+        last_y[id] = py;
+        time_since_last_reaction[id] = 0;
+        n_bonds[id] = 0;
+        n_live++;
+        edits++;
+        setOccupant(px, py, id);
+    }
+
+    /**
+     * Take an entity out of the world, breaking its bonds, and free its id
+     * for reuse. Returns false if the id holds no entity.
+     */
+    public boolean remove(int id) {
+        if (!isLive(id)) {
+            return false;
+        }
+        while (n_bonds[id] > 0) {
+            removeBond(id, bonds[id * MAX_BONDS + n_bonds[id] - 1]);
+        }
+        clearOccupant(x[id], y[id]);
+        type[id] = FREE;
+        n_live--;
+        edits++;
+        freeId(id);
+        return true;
+    }
+
+    private void freeId(int id) {
+        free_ids[id >> 6] |= 1L << id;
+        n_free++;
+        first_free_word = Math.min(first_free_word, id >> 6);
+    }
+
+    /**
+     * Place the entities n_ids .. n - 1 whose arrays were filled directly, as
+     * when reading a world file, bond lists included; FREE ids are left
+     * free. The ids are bucketed by chunk first so each chunk's array is
+     * filled in one go.
+     */
+    void restore(int n) {
+        final int first = n_ids;
+        final int n_chunks = chunks.length;
+        final int start[] = new int[n_chunks + 1];
+        int placed = 0;
+        for (int id = first; id < n; id++) {
+            final int px = x[id];
+            final int py = y[id];
+            if (type[id] == FREE) {
+                if (n_bonds[id] != 0)
+                    throw new Error("restore : free id " + id + " has bonds");
+                freeId(id);
+                continue;
+            }
+            if (type[id] < 0 || type[id] >= EntityBase.MAX_TYPES)
+                throw new Error("restore : type not in valid range for entity " + id);
+            if (state[id] < 0 || state[id] >= EntityBase.MAX_STATES)
+                throw new Error("restore : state not in valid range for entity " + id);
+            if (px < 0 || px >= n_x || py < 0 || py >= n_y)
+                throw new Error("restore : entity " + id + " is outside the world");
+            start[(px >> CHUNK_SHIFT) * n_cy + (py >> CHUNK_SHIFT) + 1]++;
+            placed++;
+        }
+        for (int c = 0; c < n_chunks; c++) {
+            start[c + 1] += start[c];
+        }
+        // ids and their slot inside the chunk, bucketed by chunk
+        final int order[] = new int[placed];
+        final int slots[] = new int[placed];
+        final int pos[] = Arrays.copyOf(start, n_chunks);
+        for (int id = first; id < n; id++) {
+            if (type[id] == FREE) {
+                continue;
+            }
+            final int px = x[id];
+            final int py = y[id];
+            final int i = pos[(px >> CHUNK_SHIFT) * n_cy + (py >> CHUNK_SHIFT)]++;
+            order[i] = id;
+            slots[i] = ((px & CHUNK_MASK) << CHUNK_SHIFT) | (py & CHUNK_MASK);
+        }
+        for (int c = 0; c < n_chunks; c++) {
+            if (start[c] == start[c + 1]) {
+                continue;
+            }
+            int chunk[] = chunks[c];
+            if (chunk == null) {
+                chunk = newChunk(c);
+            }
+            final long bits[] = chunk_bits[c];
+            final byte blocks[] = chunk_blocks == null ? null : chunk_blocks[c];
+            for (int i = start[c]; i < start[c + 1]; i++) {
+                if (chunk[slots[i]] != EMPTY)
+                    throw new Error("restore : entity " + order[i] + " is on an occupied square");
+                chunk[slots[i]] = order[i];
+                bits[slots[i] >> CHUNK_SHIFT] |= 1L << (slots[i] & CHUNK_MASK);
+                chunk_kinds[c * KINDS + type[order[i]] * EntityBase.MAX_STATES + state[order[i]]]++;
+                if (blocks != null) {
+                    blocks[blockSlot(x[order[i]], y[order[i]]) + type[order[i]]]++;
+                }
+            }
+            chunk_count[c] += start[c + 1] - start[c];
+            chunk_awake[c] = true;
+            chunk_awake_next[c] = true;
+        }
+        n_ids = n;
+        n_live += placed;
+        edits++;
+        // every bond must be held by both ends, and be a neighbour
+        for (int id = first; id < n; id++) {
+            if (n_bonds[id] < 0 || n_bonds[id] > MAX_BONDS)
+                throw new Error("restore : entity " + id + " has " + n_bonds[id] + " bonds");
+            for (int k = 0; k < n_bonds[id]; k++) {
+                final int other = bonds[id * MAX_BONDS + k];
+                if (!isLive(other) || !isNeighbour(id, other) || !hasBond(other, id))
+                    throw new Error("restore : entity " + id + " has a broken bond to " + other);
+            }
+        }
+    }
+
+    /**
+     * Move an entity to an empty square.
+     */
+    public void moveTo(int id, int new_x, int new_y) {
+        stepTo(id, new_x, new_y);
+        edits++;
+    }
+
+    /**
+     * moveTo for the tick's own moves, which leave edits alone so parallel
+     * stripes share nothing but their own squares
+     */
+    void stepTo(int id, int new_x, int new_y) {
+        final int old_x = x[id];
+        final int old_y = y[id];
+        final int c = (old_x >> CHUNK_SHIFT) * n_cy + (old_y >> CHUNK_SHIFT);
+        if (c == (new_x >> CHUNK_SHIFT) * n_cy + (new_y >> CHUNK_SHIFT)) {
+            // same chunk, the count does not change
+            final int chunk[] = chunks[c];
+            final long bits[] = chunk_bits[c];
+            chunk[((old_x & CHUNK_MASK) << CHUNK_SHIFT) | (old_y & CHUNK_MASK)] = EMPTY;
+            chunk[((new_x & CHUNK_MASK) << CHUNK_SHIFT) | (new_y & CHUNK_MASK)] = id;
+            bits[old_x & CHUNK_MASK] &= ~(1L << (old_y & CHUNK_MASK));
+            bits[new_x & CHUNK_MASK] |= 1L << (new_y & CHUNK_MASK);
+            if (chunk_blocks != null && (((old_x ^ new_x) | (old_y ^ new_y)) >> BLOCK_SHIFT) != 0) {
+                moveBlock(c, type[id], old_x, old_y, new_x, new_y);
+            }
+            wake(old_x, old_y);
+            wake(new_x, new_y);
+        } else {
+            setOccupant(new_x, new_y, id);
+            clearOccupant(old_x, old_y);
+        }
+        last_x[id] = x[id];
+        last_y[id] = y[id];
+        x[id] = new_x;
+        y[id] = new_y;
+    }
+
+    /**
+     * count an entity of type t moving between two blocks of chunk c
+     */
+    private void moveBlock(int c, int t, int old_x, int old_y, int new_x, int new_y) {
+        final byte blocks[] = chunk_blocks[c];
+        blocks[blockSlot(old_x, old_y) + t]--;
+        blocks[blockSlot(new_x, new_y) + t]++;
+    }
+
+    /**
+     * Take an entity off its square, leaving its position as it is, so a
+     * whole tick of moves can be applied in any order. Every lifted entity
+     * must be put down again with drop.
+     */
+    void lift(int id) {
+        clearOccupant(x[id], y[id]);
+    }
+
+    /**
+     * put a lifted entity down on an empty square, as moveTo would
+     */
+    void drop(int id, int new_x, int new_y) {
+        if (occupantAt(new_x, new_y) != EMPTY) {
+            throw new Error("drop : square is occupied!");
+        }
+        setOccupant(new_x, new_y, id);
+        last_x[id] = x[id];
+        last_y[id] = y[id];
+        x[id] = new_x;
+        y[id] = new_y;
+        edits++;
+    }
+
+    /**
+     * put a lifted entity down as a new one under the same id, bonds kept,
+     * for replaying an id that was freed and taken again within one tick
+     */
+    void dropNew(int id, int new_x, int new_y, int cell_type, int cell_state) {
+        if (cell_type < 0 || cell_type >= EntityBase.MAX_TYPES)
+            throw new Error("dropNew : type not in valid range");
+        if (cell_state < 0 || cell_state >= EntityBase.MAX_STATES)
+            throw new Error("dropNew : state not in valid range");
+        if (occupantAt(new_x, new_y) != EMPTY) {
+            throw new Error("dropNew : square is occupied!");
+        }
+        type[id] = (byte) cell_type;
+        state[id] = (byte) cell_state;
+        x[id] = new_x;
+        y[id] = new_y;
+        last_x[id] = new_x;
+        last_y[id] = new_y;
+        time_since_last_reaction[id] = 0;
+        edits++;
+        setOccupant(new_x, new_y, id);
+    }
+
+    public int getType(int id) {
+        return type[id];
+    }
+
+    public int getState(int id) {
+        return state[id];
+    }
+
+    /**
+     * Change the state of an entity that is on its square; s must be below
+     * MAX_STATES.
+     */
+    public void setState(int id, int s) {
+        if (state[id] != s) {
+            stepState(id, s);
+            edits++;
+        }
+    }
+
+    /**
+     * setState for the tick's own reactions, edits is left alone
+     */
+    void stepState(int id, int s) {
+        // if this is a change then reset counter
+        if (state[id] != s) {
+            time_since_last_reaction[id] = 0;
+            final int kind = ((x[id] >> CHUNK_SHIFT) * n_cy + (y[id] >> CHUNK_SHIFT)) * KINDS
+                    + type[id] * EntityBase.MAX_STATES;
+            chunk_kinds[kind + state[id]]--;
+            chunk_kinds[kind + s]++;
+            state[id] = (byte) s;
+            // a new state may let it or its neighbours react
+            wake(x[id], y[id]);
+        }
+    }
+
+    public int getBondCount(int id) {
+        return n_bonds[id];
+    }
+
+    /**
+     * the k-th bonded partner of an entity
+     */
+    public int getBond(int id, int k) {
+        return bonds[id * MAX_BONDS + k];
+    }
+
+    public boolean hasBond(int a, int b) {
+        final int base = a * MAX_BONDS;
+        for (int k = base + n_bonds[a] - 1; k >= base; k--) {
+            if (bonds[k] == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * true if the entity has room for another bond
+     */
+    public boolean canBond(int id) {
+        return n_bonds[id] < MAX_BONDS;
+    }
+
+    /**
+     * true if b is on one of the 8 squares around a, where a bond between
+     * them can be kept
+     */
+    public boolean isNeighbour(int a, int b) {
+        final int dx = deltaX(x[b] - x[a]);
+        final int dy = deltaY(y[b] - y[a]);
+        return a != b && dx >= -1 && dx <= 1 && dy >= -1 && dy <= 1;
+    }
+
+    /**
+     * bond two neighbouring entities, both must have room and not already be
+     * bonded
+     */
+    public void addBond(int a, int b) {
+        if (!isNeighbour(a, b) || !canBond(a) || !canBond(b) || hasBond(a, b)) {
+            throw new Error("addBond : can't bond " + a + " and " + b);
+        }
+        bonds[a * MAX_BONDS + n_bonds[a]++] = b;
+        bonds[b * MAX_BONDS + n_bonds[b]++] = a;
+        wake(x[a], y[a]);
+        wake(x[b], y[b]);
+    }
+
+    public void removeBond(int a, int b) {
+        if (!unlink(a, b) || !unlink(b, a)) {
+            throw new Error("removeBond : " + a + " and " + b + " are not bonded");
+        }
+        wake(x[a], y[a]);
+        wake(x[b], y[b]);
+    }
+
+    /**
+     * Replace one entity's bond list with partners[from .. from + count - 1],
+     * without touching the partners' own lists; for rebuilding a world one
+     * entity at a time, where the partners get their own lists.
+     */
+    void setBonds(int id, int partners[], int from, int count) {
+        if (count < 0 || count > MAX_BONDS)
+            throw new Error("setBonds : " + count + " bonds for entity " + id);
+        System.arraycopy(partners, from, bonds, id * MAX_BONDS, count);
+        n_bonds[id] = (byte) count;
+        wake(x[id], y[id]);
+    }
+
+    /**
+     * drop b from a's bond list, moving the last bond into its slot
+     */
+    private boolean unlink(int a, int b) {
+        final int base = a * MAX_BONDS;
+        for (int k = base + n_bonds[a] - 1; k >= base; k--) {
+            if (bonds[k] == b) {
+                bonds[k] = bonds[base + --n_bonds[a]];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getX(int id) {
+        return x[id];
+    }
+
+    public int getY(int id) {
+        return y[id];
+    }
+
+    public int getLastX(int id) {
+        return last_x[id];
+    }
+
+    public int getLastY(int id) {
+        return last_y[id];
+    }
+
+    public int getTimeSinceLastReaction(int id) {
+        return time_since_last_reaction[id];
+    }
+
+    private void grow() {
+        ensureCapacity(type.length + 1);
+    }
+
+    /**
+     * make room for ids up to min - 1, at least doubling the arrays
+     */
+    void ensureCapacity(int min) {
+        if (min <= type.length) {
+            return;
+        }
+        final int cap = Math.max(min, type.length * 2);
+        type = Arrays.copyOf(type, cap);
+        state = Arrays.copyOf(state, cap);
+        x = Arrays.copyOf(x, cap);
+        y = Arrays.copyOf(y, cap);
+        last_x = Arrays.copyOf(last_x, cap);
+        last_y = Arrays.copyOf(last_y, cap);
+        time_since_last_reaction = Arrays.copyOf(time_since_last_reaction, cap);
+        bonds = Arrays.copyOf(bonds, cap * MAX_BONDS);
+        n_bonds = Arrays.copyOf(n_bonds, cap);
+        free_ids = Arrays.copyOf(free_ids, (cap >> 6) + 1);
+    }
+
+} // End of the class //
\ No newline at end of file
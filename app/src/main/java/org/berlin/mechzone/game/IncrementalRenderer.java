@@ -0,0 +1,495 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Keeps a persistent back buffer of the world and, for each new snapshot,
+ * only redraws the squares that changed since the one before. The grid lines
+ * are pre-rendered once into a transparent layer and copied back over each
+ * redrawn square.
+ *
+ * With interpolation on, cells that moved are left out of the back buffer
+ * and drawn on top of it each frame, sliding from their old square to the
+ * new one over the time between the two snapshots.
+ *
+ * When the scale drops below RASTER_SCALE pixels per square the Java2D calls
+ * are skipped and the type colours are written straight into the int[]
+ * behind the back buffer, one pixel or block per square.
+ *
+ * A windowed snapshot is redrawn whole each time from its cells, so the
+ * cost follows the pixels shown rather than the size of the world: squares
+ * as above, or each block in its dominant type's colour faded towards white
+ * the emptier the block is.
+ */
+public class IncrementalRenderer {
+
+    private static final int GRID_LINES = 40;
+    private static final int GRID_SPACING = 10;
+
+    /**
+     * below this many pixels per square there is no room for labels, so
+     * write pixels directly
+     */
+    public static final float RASTER_SCALE = 4.0f;
+
+    /**
+     * scale from which Entity.draw adds a label to the square
+     */
+    private static final float LABEL_SCALE = 12.0f;
+
+    private static final int WHITE = 0xFFFFFF;
+    private static final int BLACK = 0x000000;
+
+    /**
+     * squares past the edge of a bounded world
+     */
+    private static final int OUTSIDE_RGB = 0xC0C0C0;
+
+    /**
+     * packed rgb of each entity type
+     */
+    private static final int TYPE_RGB[] = new int[EntityBase.TYPE_COLOURS.length];
+    static {
+        for (int t = 0; t < TYPE_RGB.length; t++) {
+            TYPE_RGB[t] = EntityBase.TYPE_COLOURS[t].getRGB() & WHITE;
+        }
+    }
+
+    /**
+     * colour of a block by dominant type and density out of 255, the square
+     * root of the density so thinly filled blocks still show their type
+     */
+    private static final int BLOCK_RGB[] = new int[EntityBase.MAX_TYPES * 256];
+    static {
+        for (int t = 0; t < EntityBase.MAX_TYPES; t++) {
+            for (int d = 0; d < 256; d++) {
+                final double f = Math.sqrt(d / 255.0);
+                int rgb = 0;
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    final int c = (TYPE_RGB[t] >> shift) & 0xFF;
+                    rgb |= (int) Math.round(255 - (255 - c) * f) << shift;
+                }
+                BLOCK_RGB[t * 256 + d] = rgb;
+            }
+        }
+    }
+
+    private final int width, height;
+
+    private final BufferedImage back_buffer;
+    private final BufferedImage grid_layer;
+
+    /**
+     * the pixels behind the back buffer, and which columns and rows hold a
+     * grid line, for the raster path
+     */
+    private final int pixels[];
+    private final boolean line_col[];
+    private final boolean line_row[];
+
+    /**
+     * window cell under each column and row of pixels, for windowed frames
+     */
+    private final int cell_col[];
+    private final int cell_row[];
+
+    private boolean raster_mode = false;
+
+    private volatile boolean interpolate = true;
+
+    /**
+     * snapshot the back buffer shows, and whether its moved cells are
+     * floating above the back buffer instead of drawn into it
+     */
+    private WorldSnapshot current = null;
+    private boolean floating = false;
+
+    /**
+     * false until the first full draw, or after invalidate(), which may come
+     * from another thread than the one drawing
+     */
+    private volatile boolean valid = false;
+
+    public IncrementalRenderer(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+        back_buffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        grid_layer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        pixels = ((DataBufferInt) back_buffer.getRaster().getDataBuffer()).getData();
+
+        line_col = new boolean[width];
+        line_row = new boolean[height];
+        cell_col = new int[width];
+        cell_row = new int[height];
+        for (int i = 0; i < GRID_LINES; i++) {
+            if (i * GRID_SPACING < width) {
+                line_col[i * GRID_SPACING] = true;
+            }
+            if (i * GRID_SPACING < height) {
+                line_row[i * GRID_SPACING] = true;
+            }
+        }
+
+        final Graphics2D g = grid_layer.createGraphics();
+        g.setColor(Color.black);
+        for (int i = 0; i < GRID_LINES; i++) {
+            g.drawLine((i * GRID_SPACING), 0, (i * GRID_SPACING), height);
+
+            g.drawLine(0, (i * GRID_SPACING), width, (i * GRID_SPACING));
+        }
+        g.dispose();
+    }
+
+    public BufferedImage getImage() {
+        return back_buffer;
+    }
+
+    /**
+     * force a full redraw on the next frame
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * the snapshot the back buffer shows, null before the first update
+     */
+    public WorldSnapshot getSnapshot() {
+        return current;
+    }
+
+    public boolean isRasterMode() {
+        return raster_mode;
+    }
+
+    public void setInterpolate(final boolean interpolate) {
+        if (this.interpolate != interpolate) {
+            this.interpolate = interpolate;
+            valid = false;
+        }
+    }
+
+    /**
+     * true while moved cells are still sliding to their new squares
+     */
+    public boolean isInterpolating(final long now_nanos) {
+        return floating && alpha(now_nanos) < 1.0f;
+    }
+
+    /**
+     * bring the back buffer up to date with a new snapshot
+     */
+    public void update(final WorldSnapshot snapshot, final float scale, final boolean fast) {
+        if (snapshot.isWindowed()) {
+            renderWindow(snapshot, fast);
+            current = snapshot;
+            valid = true;
+            return;
+        }
+        final boolean raster = scale < RASTER_SCALE;
+        if (raster != raster_mode) {
+            raster_mode = raster;
+            valid = false;
+        }
+        final boolean full = !valid || !snapshot.isIncremental()
+                || (raster && scale < 1.0f) || current == null || current.windowed || current.tick > snapshot.tick;
+        if (raster) {
+            renderRaster(snapshot, scale, full);
+        } else {
+            renderGraphics(snapshot, scale, fast, full);
+        }
+        current = snapshot;
+        valid = true;
+    }
+
+    /**
+     * draw the cells that are sliding between squares, on top of the back
+     * buffer once it has been copied to g
+     */
+    public void drawOverlay(final Graphics g, final float scale, final boolean fast, final long now_nanos) {
+        if (!floating) {
+            return;
+        }
+        final WorldSnapshot s = current;
+        final float a = alpha(now_nanos);
+        final Shape clip = g.getClip();
+        for (int k = 0; k < s.n_changed; k++) {
+            final int id = s.changed[k];
+            if (s.from_x[k] != s.x[id] || s.from_y[k] != s.y[id]) {
+                final float fx = s.from_x[k] + (s.x[id] - s.from_x[k]) * a;
+                final float fy = s.from_y[k] + (s.y[id] - s.from_y[k]) * a;
+                final int x0 = (int) (fx * scale);
+                final int y0 = (int) (fy * scale);
+                final int x1 = x0 + (int) Math.ceil(scale);
+                final int y1 = y0 + (int) Math.ceil(scale);
+                g.setClip(x0, y0, x1 - x0, y1 - y0);
+                Entity.draw(g, scale, fx, fy, s.type[id], s.state[id], s.getBondDirections(id), fast);
+                g.drawImage(grid_layer, x0, y0, x1, y1, x0, y0, x1, y1, null);
+            }
+        }
+        g.setClip(clip);
+    }
+
+    /**
+     * how far the floating cells are from their old square (0) to their new
+     * one (1)
+     */
+    private float alpha(final long now_nanos) {
+        final WorldSnapshot s = current;
+        if (s == null || s.interval_nanos <= 0) {
+            return 1.0f;
+        }
+        return Math.min(1.0f, Math.max(0.0f, (now_nanos - s.time_nanos) / (float) s.interval_nanos));
+    }
+
+    private void renderGraphics(final WorldSnapshot s, final float scale, final boolean fast, final boolean full) {
+        final Graphics2D g = back_buffer.createGraphics();
+        try {
+            if (full) {
+                g.setColor(Color.white);
+                g.fillRect(0, 0, width, height);
+                for (int id = 0; id < s.n; id++) {
+                    if (s.type[id] == GameWorldStore.FREE) {
+                        continue;
+                    }
+                    if (scale >= LABEL_SCALE) {
+                        // keep labels inside their square, as the partial redraws do
+                        final int x0 = (int) (s.x[id] * scale);
+                        final int y0 = (int) (s.y[id] * scale);
+                        g.setClip(x0, y0, (int) Math.ceil((s.x[id] + 1) * scale) - x0,
+                                (int) Math.ceil((s.y[id] + 1) * scale) - y0);
+                    }
+                    Entity.draw(g, scale, s.x[id], s.y[id], s.type[id], s.state[id], s.getBondDirections(id),
+                            fast);
+                }
+                g.setClip(null);
+                g.drawImage(grid_layer, 0, 0, null);
+                floating = false;
+                return;
+            }
+            final int n_y = s.n_y;
+
+            // cells that were floating and stayed put go into the back buffer
+            if (floating) {
+                final WorldSnapshot p = current;
+                for (int k = 0; k < p.n_changed; k++) {
+                    final int id = p.changed[k];
+                    if (id < s.n && s.type[id] != GameWorldStore.FREE && s.x[id] == p.x[id]
+                            && s.y[id] == p.y[id]) {
+                        drawSquare(g, scale, fast, s, id, n_y);
+                    }
+                }
+            }
+
+            final DirtyCells dirty = s.dirty;
+            for (int i = 0; i < dirty.size(); i++) {
+                final int index = dirty.get(i);
+                clearSquare(g, scale, index / n_y, index % n_y);
+            }
+            floating = interpolate && s.interval_nanos > 0;
+            for (int k = 0; k < s.n_changed; k++) {
+                final int id = s.changed[k];
+                final boolean moved = s.from_x[k] != s.x[id] || s.from_y[k] != s.y[id];
+                if (!(floating && moved)) {
+                    drawSquare(g, scale, fast, s, id, n_y);
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private void clearSquare(final Graphics2D g, final float scale, final int x, final int y) {
+        final int x0 = (int) (x * scale);
+        final int y0 = (int) (y * scale);
+        final int x1 = (int) Math.ceil((x + 1) * scale);
+        final int y1 = (int) Math.ceil((y + 1) * scale);
+        g.setColor(Color.white);
+        g.fillRect(x0, y0, x1 - x0, y1 - y0);
+        g.drawImage(grid_layer, x0, y0, x1, y1, x0, y0, x1, y1, null);
+    }
+
+    /**
+     * draw one cell clipped to its square, with the grid lines over it
+     */
+    private void drawSquare(final Graphics2D g, final float scale, final boolean fast,
+                            final WorldSnapshot s, final int id, final int n_y) {
+        final int x = s.x[id];
+        final int y = s.y[id];
+        final int x0 = (int) (x * scale);
+        final int y0 = (int) (y * scale);
+        final int x1 = (int) Math.ceil((x + 1) * scale);
+        final int y1 = (int) Math.ceil((y + 1) * scale);
+        g.setClip(x0, y0, x1 - x0, y1 - y0);
+        Entity.draw(g, scale, x, y, s.type[id], s.state[id], s.getBondDirections(id), fast);
+        g.drawImage(grid_layer, x0, y0, x1, y1, x0, y0, x1, y1, null);
+        g.setClip(null);
+    }
+
+    /**
+     * Write the squares straight into the pixel array. Below one pixel per
+     * square several squares share a pixel, so only a full redraw is exact.
+     */
+    private void renderRaster(final WorldSnapshot s, final float scale, final boolean full) {
+        floating = false;
+        if (full) {
+            Arrays.fill(pixels, WHITE);
+            for (int id = 0; id < s.n; id++) {
+                if (s.type[id] == GameWorldStore.FREE) {
+                    continue;
+                }
+                fillSquare(s.x[id], s.y[id], scale, TYPE_RGB[s.type[id]], false);
+            }
+            for (int py = 0; py < height; py++) {
+                final int row = py * width;
+                if (line_row[py]) {
+                    Arrays.fill(pixels, row, row + width, BLACK);
+                } else {
+                    for (int px = 0; px < width; px++) {
+                        if (line_col[px]) {
+                            pixels[row + px] = BLACK;
+                        }
+                    }
+                }
+            }
+        } else {
+            final int n_y = s.n_y;
+            final DirtyCells dirty = s.dirty;
+            for (int i = 0; i < dirty.size(); i++) {
+                final int index = dirty.get(i);
+                fillSquare(index / n_y, index % n_y, scale, WHITE, true);
+            }
+            for (int k = 0; k < s.n_changed; k++) {
+                final int id = s.changed[k];
+                fillSquare(s.x[id], s.y[id], scale, TYPE_RGB[s.type[id]], true);
+            }
+        }
+    }
+
+    /**
+     * Draw a windowed snapshot whole: with Entity.draw per square when
+     * zoomed in far enough for the shapes, else a pixel at a time from the
+     * cell under it.
+     */
+    private void renderWindow(final WorldSnapshot s, final boolean fast) {
+        floating = false;
+        final ViewWindow w = s.window;
+        final Viewport v = w.view;
+        final double block = 1 << w.level;
+        // pixel position of the first cell's top left corner, at or before 0
+        final double left = (w.col0 * block - v.origin_x) * v.zoom;
+        final double top = (w.row0 * block - v.origin_y) * v.zoom;
+        if (w.level == 0 && v.zoom >= RASTER_SCALE) {
+            final Graphics2D g = back_buffer.createGraphics();
+            try {
+                g.setColor(Color.white);
+                g.fillRect(0, 0, width, height);
+                g.translate(left, top);
+                final float scale = v.zoom;
+                for (int r = 0; r < w.rows; r++) {
+                    for (int c = 0; c < w.cols; c++) {
+                        final int cell = w.cells[r * w.cols + c];
+                        if (cell == 0) {
+                            continue;
+                        }
+                        final int x0 = (int) (c * scale);
+                        final int y0 = (int) (r * scale);
+                        g.setClip(x0, y0, (int) Math.ceil((c + 1) * scale) - x0,
+                                (int) Math.ceil((r + 1) * scale) - y0);
+                        if (cell == ViewWindow.OUTSIDE) {
+                            g.setColor(Color.lightGray);
+                            g.fillRect(x0, y0, (int) Math.ceil(scale), (int) Math.ceil(scale));
+                        } else {
+                            Entity.draw(g, scale, c, r, (cell & 0xFF) - 1, (cell >> 8) & 0xFF, cell >>> 16, fast);
+                        }
+                    }
+                }
+                g.setClip(null);
+                g.translate(-left, -top);
+                g.drawImage(grid_layer, 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+            return;
+        }
+        final double cell_size = block * v.zoom;
+        for (int px = 0; px < width; px++) {
+            cell_col[px] = Math.min(w.cols - 1, Math.max(0, (int) ((px - left) / cell_size)));
+        }
+        for (int py = 0; py < height; py++) {
+            cell_row[py] = Math.min(w.rows - 1, Math.max(0, (int) ((py - top) / cell_size)));
+        }
+        final int cells[] = w.cells;
+        final boolean squares = w.level == 0;
+        for (int py = 0; py < height; py++) {
+            final int row = py * width;
+            if (line_row[py]) {
+                Arrays.fill(pixels, row, row + width, BLACK);
+                continue;
+            }
+            final int first = cell_row[py] * w.cols;
+            for (int px = 0; px < width; px++) {
+                final int cell = cells[first + cell_col[px]];
+                final int rgb;
+                if (line_col[px]) {
+                    rgb = BLACK;
+                } else if (cell == 0) {
+                    rgb = WHITE;
+                } else if (cell == ViewWindow.OUTSIDE) {
+                    rgb = OUTSIDE_RGB;
+                } else if (squares) {
+                    rgb = TYPE_RGB[(cell & 0xFF) - 1];
+                } else {
+                    rgb = BLOCK_RGB[((cell & 0xFF) - 1) * 256 + ((cell >> 8) & 0xFF)];
+                }
+                pixels[row + px] = rgb;
+            }
+        }
+    }
+
+    /**
+     * fill the block of pixels covering one square, clipped to the image,
+     * optionally putting the grid lines back inside it
+     */
+    private void fillSquare(final int x, final int y, final float scale, final int rgb, final boolean lines) {
+        final int x0 = (int) (x * scale);
+        final int y0 = (int) (y * scale);
+        final int x1 = Math.min(width, Math.max(x0 + 1, (int) ((x + 1) * scale)));
+        final int y1 = Math.min(height, Math.max(y0 + 1, (int) ((y + 1) * scale)));
+        for (int py = y0; py < y1; py++) {
+            final int row = py * width;
+            for (int px = x0; px < x1; px++) {
+                pixels[row + px] = lines && (line_row[py] || line_col[px]) ? BLACK : rgb;
+            }
+        }
+    }
+
+} // End of the class //
\ No newline at end of file
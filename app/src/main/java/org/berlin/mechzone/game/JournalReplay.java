@@ -0,0 +1,299 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Rebuilds the world at any tick of a run recorded by a TickJournal: loads
+ * the last snapshot at or before the tick and applies the journal deltas
+ * from there on, so a seek costs at most snapshot_every ticks of deltas
+ * instead of re-running the simulation.
+ */
+public class JournalReplay {
+
+    private static final int READ_BYTES = 1 << 20;
+
+    private final File dir;
+
+    /**
+     * snapshot ticks in increasing order and the journal offset after each
+     */
+    private final long snapshot_tick[];
+    private final long snapshot_offset[];
+
+    /**
+     * the deltas of one tick, applied together once the tick is complete
+     */
+    private int n_deltas = 0;
+    private int delta_id[] = new int[1024];
+    private int delta_x[] = new int[1024];
+    private int delta_y[] = new int[1024];
+    private int delta_type[] = new int[1024];
+    private int delta_state[] = new int[1024];
+
+    /**
+     * the new bond lists of one tick, MAX_BONDS slots each
+     */
+    private int n_bond_deltas = 0;
+    private int bond_delta_id[] = new int[64];
+    private byte bond_delta_count[] = new byte[64];
+    private int bond_delta_list[] = new int[64 * GameWorldStore.MAX_BONDS];
+
+    public JournalReplay(final File dir) throws IOException {
+        this.dir = dir;
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, TickJournal.INDEX_FILE), "r")) {
+            final int n = (int) (raf.length() / 16);
+            final ByteBuffer buf = ByteBuffer.allocate(n * 16).order(TickJournal.ORDER);
+            raf.getChannel().read(buf, 0);
+            buf.flip();
+            snapshot_tick = new long[n];
+            snapshot_offset = new long[n];
+            for (int i = 0; i < n; i++) {
+                snapshot_tick[i] = buf.getLong();
+                snapshot_offset[i] = buf.getLong();
+            }
+        }
+        if (snapshot_tick.length == 0) {
+            throw new IOException("Journal has no snapshots : " + dir);
+        }
+    }
+
+    public long getFirstTick() {
+        return snapshot_tick[0];
+    }
+
+    /**
+     * Rebuild the world as it was at the end of the given tick. The grid
+     * resumes with the generator state recorded at that tick, so stepping
+     * it sequentially continues the original run.
+     */
+    public GameGraphicsGrid seek(final long tick) throws IOException {
+        if (tick < snapshot_tick[0]) {
+            throw new IOException("Journal starts at tick " + snapshot_tick[0] + ", can't seek to " + tick);
+        }
+        int k = Arrays.binarySearch(snapshot_tick, tick);
+        if (k < 0) {
+            k = -k - 2;
+        }
+        final GameGraphicsGrid base = WorldFile.load(new File(dir, "snapshot-" + snapshot_tick[k] + ".mzw"));
+        if (snapshot_tick[k] == tick) {
+            return base;
+        }
+        final GameWorldStore world = base.getWorld();
+        GameRandom random = base.getRandom();
+
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, TickJournal.JOURNAL_FILE), "r");
+             FileChannel channel = raf.getChannel()) {
+            channel.position(snapshot_offset[k]);
+            final ByteBuffer buf = ByteBuffer.allocateDirect(READ_BYTES).order(TickJournal.ORDER);
+            buf.flip();
+            n_deltas = 0;
+            n_bond_deltas = 0;
+            int id = -1;
+            while (true) {
+                fill(channel, buf);
+                final int head = getVarint(buf);
+                if (head != 0) {
+                    id += head >>> TickJournal.KIND_BITS;
+                    readDelta(world, buf, id, head & TickJournal.KIND_MASK);
+                    continue;
+                }
+                final int random_kind = buf.get();
+                final long at = buf.getLong();
+                final long state0 = buf.getLong();
+                final long state1 = buf.getLong();
+                applyDeltas(world);
+                id = -1;
+                if (at == tick) {
+                    if (random_kind == WorldFile.RANDOM_XOROSHIRO) {
+                        final XoroshiroRandom xoroshiro = new XoroshiroRandom(0);
+                        xoroshiro.setState(state0, state1);
+                        random = xoroshiro;
+                    }
+                    return new GameGraphicsGrid(world, (int) at, random);
+                }
+            }
+        } catch (EOFException | BufferUnderflowException e) {
+            throw new IOException("Journal ends before tick " + tick, e);
+        }
+    }
+
+    /**
+     * make sure the buffer holds a whole record, unless the journal ends
+     * first
+     */
+    private static void fill(final FileChannel channel, final ByteBuffer buf) throws IOException {
+        if (buf.remaining() >= TickJournal.MAX_RECORD) {
+            return;
+        }
+        buf.compact();
+        while (buf.position() < TickJournal.MAX_RECORD) {
+            if (channel.read(buf) < 0) {
+                if (buf.position() == 0) {
+                    throw new EOFException();
+                }
+                break;
+            }
+        }
+        buf.flip();
+    }
+
+    private static int getVarint(final ByteBuffer buf) {
+        int v = 0;
+        for (int shift = 0;; shift += 7) {
+            final byte b = buf.get();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+    }
+
+    /**
+     * decode one entity record into the position and state it has at the
+     * end of the tick
+     */
+    private void readDelta(final GameWorldStore world, final ByteBuffer buf, final int id, final int kind) {
+        if (kind == TickJournal.BONDS) {
+            readBonds(buf, id);
+            return;
+        }
+        if (kind == TickJournal.FULL) {
+            final int px = getVarint(buf);
+            final int py = getVarint(buf);
+            final int type = buf.get();
+            addDelta(id, px, py, type, buf.get());
+            return;
+        }
+        if (!world.isLive(id)) {
+            throw new Error("Journal entity " + id + " changed before it was added");
+        }
+        if (kind == TickJournal.REMOVE) {
+            addDelta(id, world.x[id], world.y[id], GameWorldStore.FREE, 0);
+            return;
+        }
+        int px = world.x[id];
+        int py = world.y[id];
+        int s = world.state[id];
+        if (kind != TickJournal.STATE) {
+            final int direction = buf.get();
+            px += direction / 3 - 1;
+            py += direction % 3 - 1;
+        }
+        if (kind != TickJournal.MOVE) {
+            s = buf.get();
+        }
+        addDelta(id, px, py, world.type[id], s);
+    }
+
+    private void readBonds(final ByteBuffer buf, final int id) {
+        final int count = buf.get();
+        if (count < 0 || count > GameWorldStore.MAX_BONDS) {
+            throw new Error("Journal entity " + id + " has " + count + " bonds");
+        }
+        if (n_bond_deltas == bond_delta_id.length) {
+            final int cap = n_bond_deltas * 2;
+            bond_delta_id = Arrays.copyOf(bond_delta_id, cap);
+            bond_delta_count = Arrays.copyOf(bond_delta_count, cap);
+            bond_delta_list = Arrays.copyOf(bond_delta_list, cap * GameWorldStore.MAX_BONDS);
+        }
+        final int base = n_bond_deltas * GameWorldStore.MAX_BONDS;
+        for (int k = 0; k < count; k++) {
+            bond_delta_list[base + k] = getVarint(buf);
+        }
+        bond_delta_id[n_bond_deltas] = id;
+        bond_delta_count[n_bond_deltas] = (byte) count;
+        n_bond_deltas++;
+    }
+
+    private void addDelta(int id, int px, int py, int type, int s) {
+        if (n_deltas == delta_id.length) {
+            final int cap = n_deltas * 2;
+            delta_id = Arrays.copyOf(delta_id, cap);
+            delta_x = Arrays.copyOf(delta_x, cap);
+            delta_y = Arrays.copyOf(delta_y, cap);
+            delta_type = Arrays.copyOf(delta_type, cap);
+            delta_state = Arrays.copyOf(delta_state, cap);
+        }
+        delta_id[n_deltas] = id;
+        delta_x[n_deltas] = px;
+        delta_y[n_deltas] = py;
+        delta_type[n_deltas] = type;
+        delta_state[n_deltas] = s;
+        n_deltas++;
+    }
+
+    /**
+     * Apply one tick of deltas. Removed entities go first and all the
+     * movers are lifted before any is put down, since a mover may land on a
+     * square another one left in the same tick; new entities are added
+     * next, under their recorded ids, and the changed bond lists last, once
+     * every entity they name exists. An id freed and taken again within the
+     * tick keeps its bonds until its bond list is replaced, as its partners'
+     * lists only have records if they ended up different.
+     */
+    private void applyDeltas(final GameWorldStore world) {
+        for (int i = 0; i < n_deltas; i++) {
+            if (delta_type[i] == GameWorldStore.FREE) {
+                world.remove(delta_id[i]);
+            }
+        }
+        for (int i = 0; i < n_deltas; i++) {
+            final int id = delta_id[i];
+            if (world.isLive(id) && (world.x[id] != delta_x[i] || world.y[id] != delta_y[i]
+                    || world.type[id] != delta_type[i])) {
+                world.lift(id);
+            }
+        }
+        for (int i = 0; i < n_deltas; i++) {
+            final int id = delta_id[i];
+            if (delta_type[i] == GameWorldStore.FREE) {
+                continue;
+            }
+            if (!world.isLive(id)) {
+                world.addAt(id, delta_x[i], delta_y[i], delta_type[i], delta_state[i]);
+            } else if (world.type[id] != delta_type[i]) {
+                world.dropNew(id, delta_x[i], delta_y[i], delta_type[i], delta_state[i]);
+            } else {
+                if (world.x[id] != delta_x[i] || world.y[id] != delta_y[i]) {
+                    world.drop(id, delta_x[i], delta_y[i]);
+                }
+                world.setState(id, delta_state[i]);
+            }
+        }
+        n_deltas = 0;
+        for (int i = 0; i < n_bond_deltas; i++) {
+            world.setBonds(bond_delta_id[i], bond_delta_list, i * GameWorldStore.MAX_BONDS, bond_delta_count[i]);
+        }
+        n_bond_deltas = 0;
+    }
+
+} // End of the class //
\ No newline at end of file
@@ -0,0 +1,151 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size histogram of non-negative long values, such as latencies in
+ * nanoseconds, in the style of HdrHistogram. Each value is counted in a
+ * bucket that keeps its top SUB_BUCKET_BITS significant bits, so any
+ * percentile read back is within 1 part in 64 of the true value, from
+ * nanoseconds to hours, in about 30KB. Recording is a few bit operations and
+ * one increment, with no allocation.
+ *
+ * Values are recorded on one thread and read on others, so every method is
+ * synchronized; the lock is uncontended on the recording side.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int HALF = 1 << (SUB_BUCKET_BITS - 1);
+
+    /**
+     * values below 2^SUB_BUCKET_BITS have a bucket each, above that every
+     * power of two is split into HALF buckets
+     */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * HALF + 2 * HALF;
+
+    private final long counts[] = new long[BUCKETS];
+    private long count = 0;
+    private long total = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    private static int bucket(long value) {
+        final int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * the largest value counted in the same bucket
+     */
+    private static long highestInBucket(int bucket) {
+        if (bucket < 2 * HALF) {
+            return bucket;
+        }
+        final int shift = bucket / HALF - 1;
+        final long low = (long) (bucket - shift * HALF) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucket(value)]++;
+        count++;
+        total += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : total / (double) count;
+    }
+
+    /**
+     * The value at a percentile, 0 to 100: the smallest value that at least
+     * that share of the recorded values are at or below, to the histogram's
+     * precision. 0 if nothing was recorded.
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return Math.min(max, highestInBucket(b));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * add all the values recorded by another histogram
+     */
+    public void add(final LatencyHistogram other) {
+        final long other_counts[];
+        final long other_count, other_total, other_min, other_max;
+        synchronized (other) {
+            other_counts = other.counts.clone();
+            other_count = other.count;
+            other_total = other.total;
+            other_min = other.min;
+            other_max = other.max;
+        }
+        synchronized (this) {
+            for (int b = 0; b < BUCKETS; b++) {
+                counts[b] += other_counts[b];
+            }
+            count += other_count;
+            total += other_total;
+            min = Math.min(min, other_min);
+            max = Math.max(max, other_max);
+        }
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+} // End of the class //
\ No newline at end of file
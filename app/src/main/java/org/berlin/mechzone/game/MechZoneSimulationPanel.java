@@ -25,48 +25,138 @@ import org.apache.log4j.Logger;
 
 import javax.swing.JPanel;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
 import java.awt.event.KeyListener;
 
 import java.awt.geom.Path2D;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * Main Class for JFrame Squirm Java Graphics Component.
+ *
+ * The view pans and zooms: mouse wheel or +/- to zoom, drag or W/A/S/D to
+ * pan, Home to see the whole world again. Unless the whole world is shown
+ * at a pixel per square or more, only the part in view is copied from the
+ * simulation and drawn, in blocks when zoomed out.
+ *
+ * With active rendering on, frames are drawn onto a Canvas by an
+ * ActiveRenderLoop on a thread of its own, and the event thread only
+ * handles input. Otherwise a Swing timer brings the back buffer up to date
+ * on the event thread and paint shows it.
  */
 public class MechZoneSimulationPanel extends JPanel
-        implements Runnable, MouseListener, KeyListener {
+        implements MouseListener, MouseMotionListener, MouseWheelListener, KeyListener, ActiveRenderLoop.Scene {
 
     private static final long serialVersionUID = 1L;
     private static final Logger LOGGER = Logger.getLogger(MechZoneSimulationPanel.class);
 
     private static final String NEWLINE = System.getProperty("line.separator");
 
-    private Thread gameThread = null;
+    /**
+     * display refresh rate, the simulation runs at its own rate on the
+     * scheduler's thread
+     */
+    private static final int FRAMES_PER_SECOND = 60;
 
     protected GameGraphicsGrid gameGrid;
+    protected SimulationEngine engine;
+    protected volatile SimulationScheduler scheduler;
+    protected volatile SnapshotPublisher publisher;
+
+    /**
+     * the publisher frames are taken from, only touched by the thread that
+     * draws; a new world's publisher is handed over through next_publisher
+     * and picked up at the start of a frame
+     */
+    private SnapshotPublisher frame_publisher = null;
+    private final AtomicReference<SnapshotPublisher> next_publisher = new AtomicReference<>();
 
-    protected final int gridSizeX = 50;
-    protected final int gridSizeY = 50;
+    /**
+     * writes saved worlds off the event thread
+     */
+    private final BackgroundSaver saver = new BackgroundSaver("save");
+
+    private final Timer renderTimer;
+
+    /**
+     * draw on a render thread instead of the event thread, set before init
+     */
+    private boolean active = false;
+    private Canvas canvas = null;
+    private ActiveRenderLoop renderLoop = null;
+    private final RateMeter frameRate = new RateMeter();
+
+    /**
+     * metrics of whichever world is running, on JMX as "ui"
+     */
+    protected final SimulationMetrics metrics = new SimulationMetrics("ui");
+
+    /**
+     * time spent bringing the back buffer up to date since the last paint
+     */
+    private long update_nanos = 0;
+
+    protected final int gridSizeX;
+    protected final int gridSizeY;
     protected final int drawingSizeX = 800;
     protected final int drawingSizeY = 600;
-    protected final float scale = drawingSizeX / (float) gridSizeX;
+    protected volatile float scale;
 
-    protected Image offscreenImage = null;
-    protected Graphics off_g = null;
+    /**
+     * the part of the world shown, whole and scaled to fit at first
+     */
+    protected volatile Viewport viewport;
+
+    /**
+     * pixels a W/A/S/D press pans by, and zoom factor of a +/- press
+     */
+    private static final int PAN_STEP = 100;
+    private static final float ZOOM_STEP = 1.5f;
+
+    /**
+     * where the last drag event was
+     */
+    private int drag_x, drag_y;
+
+    /**
+     * persistent back buffer, only the squares changed since the last frame
+     * are redrawn into it
+     */
+    protected IncrementalRenderer renderer = null;
 
     private static final int FAST = 1;
-    private int delay = 240;
-    private boolean paused = false;
-    private int draw_every = 1;
+    private volatile int delay = 240;
 
     private String error_msg;
     private boolean error_thrown = false;
 
-    private String inspect_msg = "x";
-    private int inspect_msg_x = 20, inspect_msg_y = 20;
+    /**
+     * where the pointer is and the square under it, read when a frame is
+     * drawn
+     */
+    private volatile int inspect_msg_x = 20, inspect_msg_y = 20;
+    private volatile int inspect_slot_x = -1, inspect_slot_y = -1;
+
+    /**
+     * the inspector text and the snapshot and square it was made for, kept
+     * by the drawing thread so it is only made again when either changes
+     */
+    private WorldSnapshot inspect_snapshot = null;
+    private int inspect_text_x = -1, inspect_text_y = -1;
+    private String inspect_text = "";
 
     private String current_cell;
     private long counter = 0;
@@ -74,34 +164,235 @@ public class MechZoneSimulationPanel extends JPanel
     private JTextArea textArea;
 
     public MechZoneSimulationPanel() {
+        this(50, 50, GameGraphicsGrid.N_CELLS, false);
+    }
+
+    /**
+     * a panel running a new world of the given size, bounded or a torus,
+     * scaled to fit the drawing area
+     */
+    public MechZoneSimulationPanel(int size_x, int size_y, int entities, boolean wrap) {
+        gridSizeX = size_x;
+        gridSizeY = size_y;
+        scale = Math.min(drawingSizeX / (float) gridSizeX, drawingSizeY / (float) gridSizeY);
         this.addMouseListener(this);
+        this.addMouseMotionListener(this);
+        this.addMouseWheelListener(this);
         this.addKeyListener(this);
         this.setFocusable(true);
         //this.setFocusTraversalKeysEnabled(false);
         this.requestFocusInWindow();
 
         try {
-            gameGrid = new GameGraphicsGrid(gridSizeX, gridSizeY);
+            viewport = Viewport.fit(size_x, size_y, wrap, drawingSizeX, drawingSizeY);
+            gameGrid = new GameGraphicsGrid(gridSizeX, gridSizeY, entities, wrap,
+                    new XoroshiroRandom(System.nanoTime()));
+            gameGrid.setReactionRules(ReactionRules.defaults());
+            engine = new SimulationEngine(gameGrid);
+            publisher = new SnapshotPublisher(gameGrid);
+            next_publisher.set(publisher);
+            engine.addObserver(publisher);
+            engine.addObserver(metrics);
+            scheduler = new SimulationScheduler(engine);
+            setDelay(delay);
+            setViewport(viewport);
+            metrics.register();
+            error_msg = "";
         } catch (Error e) {
+            // no world to run, the panel shows why instead
+            LOGGER.error("Couldn't build the world", e);
             error_thrown = true;
             error_msg = e.getMessage();
         }
-        error_msg = new String();
+        renderTimer = new Timer(1000 / FRAMES_PER_SECOND, e -> nextFrame());
+        renderTimer.setCoalesce(true);
+    }
+
+    /**
+     * Draw the frames on a render thread of their own onto a Canvas, rather
+     * than on the event thread. Must be set before init.
+     */
+    public void setActiveRendering(final boolean active) {
+        this.active = active;
+    }
+
+    public boolean isActiveRendering() {
+        return active;
     }
 
     public void togglePaused() {
-        paused = !paused;
+        if (scheduler != null) {
+            scheduler.setPaused(!scheduler.isPaused());
+        }
     }
 
+    /**
+     * milliseconds per simulation tick, 0 runs the simulation unthrottled
+     */
     public void setDelay(int d) {
         delay = d;
+        if (scheduler != null) {
+            scheduler.setTargetTickRate(d > 0 ? 1000.0 / d : 0);
+        }
     }
 
+    /**
+     * show at most one frame every this many ticks
+     */
     public void setDrawOnlyEvery(int every) {
-        draw_every = every;
+        if (publisher != null) {
+            publisher.setPublishEvery(every);
+        }
+    }
+
+    public void setInterpolate(boolean interpolate) {
+        if (renderer != null) {
+            renderer.setInterpolate(interpolate);
+        }
+    }
+
+    public double getTickRate() {
+        return scheduler != null ? scheduler.getTickRate() : 0;
+    }
+
+    public double getFrameRate() {
+        return frameRate.getRate();
+    }
+
+    /**
+     * Read a world file on a worker thread, the running world goes on until
+     * it's read and is then replaced by it, sized to fit the drawing area.
+     * done gets null or the error, on the event thread.
+     */
+    public void openWorld(final File file, final Consumer<IOException> done) {
+        new SwingWorker<GameGraphicsGrid, Void>() {
+            protected GameGraphicsGrid doInBackground() throws IOException {
+                return WorldFile.load(file);
+            }
+
+            protected void done() {
+                final GameGraphicsGrid grid;
+                try {
+                    grid = get();
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    done.accept(cause instanceof IOException ? (IOException) cause
+                            : new IOException(cause.getMessage(), cause));
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                switchWorld(grid, file);
+                done.accept(null);
+            }
+        }.execute();
+    }
+
+    private void switchWorld(final GameGraphicsGrid grid, final File file) {
+        // if the first world couldn't be built this one replaces the error
+        grid.setReactionRules(gameGrid != null ? gameGrid.getReactionRules() : ReactionRules.defaults());
+        final int every = publisher != null ? publisher.getPublishEvery() : 1;
+        // the new world runs only if the old one was, or there was none
+        final boolean was_running = scheduler == null || scheduler.isRunning();
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+        error_thrown = false;
+        error_msg = "";
+
+        gameGrid = grid;
+        engine = new SimulationEngine(gameGrid);
+        publisher = new SnapshotPublisher(gameGrid);
+        publisher.setPublishEvery(every);
+        publisher.setProbe(inspect_slot_x, inspect_slot_y);
+        engine.addObserver(publisher);
+        engine.addObserver(metrics);
+        scheduler = new SimulationScheduler(engine);
+        setDelay(delay);
+
+        scale = Math.min(drawingSizeX / (float) grid.getWorld().getSizeX(),
+                drawingSizeY / (float) grid.getWorld().getSizeY());
+        setViewport(Viewport.fit(grid.getWorld(), drawingSizeX, drawingSizeY));
+        next_publisher.set(publisher);
+        LOGGER.info("Opened " + file + " : " + grid.getWorld().getSizeX() + "x" + grid.getWorld().getSizeY()
+                + " entities=" + grid.getWorld().size() + " tick=" + grid.getCount());
+        if (was_running) {
+            scheduler.start();
+        }
+    }
+
+    /**
+     * Write the running world to a world file. The simulation is held
+     * between two ticks only while the world is copied, the copy is written
+     * in the background. done gets null or the error, on the event thread.
+     */
+    public void saveWorld(final File file, final Consumer<IOException> done) {
+        if (gameGrid == null) {
+            done.accept(new IOException("there is no world to save"));
+            return;
+        }
+        final boolean started;
+        final boolean was_running = scheduler.isRunning();
+        scheduler.stop();
+        try {
+            final long tick = gameGrid.getCount();
+            started = saver.save(gameGrid, file,
+                    () -> SwingUtilities.invokeLater(() -> {
+                        LOGGER.info("Saved " + file + " : tick=" + tick);
+                        done.accept(null);
+                    }),
+                    e -> SwingUtilities.invokeLater(() -> done.accept(e)));
+        } finally {
+            if (was_running) {
+                scheduler.start();
+            }
+        }
+        if (!started) {
+            done.accept(new IOException("the last saves are still being written"));
+        }
+    }
+
+    /**
+     * wait for the saves already started to be written, on the way out
+     */
+    public void finishSaves() {
+        saver.close();
+    }
+
+    /**
+     * use the reactions in a rule file from the next tick on
+     */
+    public void loadReactions(final File file) throws IOException {
+        final ReactionRules rules = ReactionRules.load(file);
+        if (gameGrid == null) {
+            throw new IOException("there is no world to use the reactions in");
+        }
+        gameGrid.setReactionRules(rules);
+        LOGGER.info("Loaded " + rules.size() + " reactions from " + file);
+    }
+
+    /**
+     * Show another part of the world. The simulation copies only what the
+     * view shows unless it is the whole world at a pixel per square or more,
+     * which is drawn incrementally from full snapshots as before.
+     */
+    public void setViewport(final Viewport view) {
+        viewport = view;
+        final boolean whole = view.isWhole() && view.getZoom() >= 1.0f;
+        if (publisher != null) {
+            publisher.setViewport(whole ? null : view);
+        }
+    }
+
+    public Viewport getViewport() {
+        return viewport;
     }
 
     public void removeAllReactions() {
+        if (gameGrid != null) {
+            gameGrid.setReactionRules(null);
+        }
         error_msg = "";
     }
 
@@ -116,46 +407,121 @@ public class MechZoneSimulationPanel extends JPanel
         resize(drawingSizeX, drawingSizeY);
         size = this.getSize();
 
-        if (offscreenImage == null) {
-            offscreenImage = createImage(drawingSizeX, drawingSizeY);
-            // may need gjt.Util.waitForImage(this, offscreenImage);
-            off_g = offscreenImage.getGraphics();
+        if (renderer == null) {
+            renderer = new IncrementalRenderer(drawingSizeX, drawingSizeY);
         }
         this.addKeyListener(this);
         this.setFocusable(true);
         //this.setFocusTraversalKeysEnabled(false);
         this.requestFocusInWindow();
 
+        if (active && canvas == null) {
+            // the canvas covers the panel, so it gets the input
+            canvas = new Canvas();
+            canvas.setPreferredSize(new Dimension(drawingSizeX, drawingSizeY));
+            canvas.addMouseListener(this);
+            canvas.addMouseMotionListener(this);
+            canvas.addMouseWheelListener(this);
+            canvas.addKeyListener(this);
+            canvas.setFocusable(true);
+            this.setLayout(new BorderLayout());
+            this.add(canvas, BorderLayout.CENTER);
+            this.validate();
+            canvas.requestFocusInWindow();
+            renderLoop = new ActiveRenderLoop(canvas, this);
+        }
+
     }
 
     public void destroy() {
     }
 
-    public int x = 20;
-    public int y = 20;
+    /**
+     * the player, moved with the arrow keys on the event thread and drawn on
+     * whichever thread draws the frames
+     */
+    public volatile int x = 20;
+    public volatile int y = 20;
 
     /**
-     * Squirm Paint Handler, set background, render cells
+     * Display timer, runs on the EDT at the display rate when not rendering
+     * actively.
      */
-    public void paint(final Graphics g) {
-        if (off_g == null) {
+    private void nextFrame() {
+        if (renderer == null) {
             return;
         }
-        // Clear the background
-        off_g.setColor(Color.white);
-        off_g.fillRect(0, 0, drawingSizeX, drawingSizeY);
-
-        // Draw the cells
-        gameGrid.draw(off_g, scale, delay <= FAST);
+        if (prepare(System.nanoTime())) {
+            repaint();
+        }
+    }
 
-        // draw grid after elements
-        for (int i = 0; i < 40; i++) {
-            off_g.drawLine((i * 10), 0, (i * 10), drawingSizeY);
+    /**
+     * Take the newest snapshot if there is one and bring the back buffer up
+     * to date with it; skipped ticks are folded into it. True if the frame
+     * needs drawing again. Runs on the EDT or the render thread.
+     */
+    public boolean prepare(final long now_nanos) {
+        final SnapshotPublisher next = next_publisher.getAndSet(null);
+        if (next != null) {
+            // a new world, nothing in the back buffer carries over
+            frame_publisher = next;
+            renderer.invalidate();
+        }
+        if (frame_publisher == null) {
+            return false;
+        }
+        final WorldSnapshot snapshot = frame_publisher.take();
+        if (snapshot != null) {
+            final long start = System.nanoTime();
+            renderer.update(snapshot, scale, delay <= FAST);
+            update_nanos += System.nanoTime() - start;
+            return true;
+        }
+        return renderer.isInterpolating(now_nanos);
+    }
 
-            off_g.drawLine(0, (i * 10), drawingSizeX, (i * 10));
+    /**
+     * Squirm Paint Handler, show the back buffer and draw the moving cells,
+     * counter and player over it. Under active rendering the canvas covers
+     * the panel and is drawn by the render thread.
+     */
+    public void paint(final Graphics g) {
+        if (active) {
+            super.paint(g);
+            return;
         }
+        draw((Graphics2D) g, System.nanoTime());
+    }
 
-        final Graphics2D g2 = (Graphics2D) off_g;
+    /**
+     * compose a whole frame, on the EDT from paint or on the render thread
+     */
+    public void draw(final Graphics2D g, final long now_nanos) {
+        if (renderer == null || renderer.getSnapshot() == null) {
+            g.setColor(Color.white);
+            g.fillRect(0, 0, drawingSizeX, drawingSizeY);
+            if (error_thrown) {
+                g.setColor(Color.black);
+                g.drawString(error_msg, 10, 100);
+            }
+            return;
+        }
+        final long start = System.nanoTime();
+        // Show the result
+        g.drawImage(renderer.getImage(), 0, 0, null);
+        renderer.drawOverlay(g, scale, delay <= FAST, now_nanos);
+
+        g.setColor(Color.black);
+
+        // draw the time step counter on top (to the farthest to the front)
+        g.drawString(String.valueOf(renderer.getSnapshot().getTick()), 10, 10);
+        g.drawString(String.format("%.1f ticks/s %.1f fps view %s", getTickRate(), getFrameRate(), viewport), 10, 22);
+        final SimulationScheduler running = scheduler;
+        final String last_error = running != null ? running.getLastError() : null;
+        if (last_error != null) {
+            g.drawString(last_error, 10, 100);
+        }
 
         // Render player:
         final Path2D myPath = new Path2D.Double();
@@ -165,23 +531,43 @@ public class MechZoneSimulationPanel extends JPanel
         myPath.lineTo(30 - firstX+x, firstY+y);
         myPath.lineTo(30 / 2.0+x, (30 / 4.0)+y);
         myPath.closePath();
-        g2.fill(myPath);  // fill my triangle
+        g.fill(myPath);  // fill my triangle
+
+        if (error_thrown) {
+            g.drawString(error_msg, 10, 100);
+        }
+        // the neighbourhood summary arrives with the next snapshot
+        final WorldSnapshot snapshot = renderer.getSnapshot();
+        final int slot_x = inspect_slot_x;
+        final int slot_y = inspect_slot_y;
+        if (snapshot != inspect_snapshot || slot_x != inspect_text_x || slot_y != inspect_text_y) {
+            final String contents = snapshot.getContents(slot_x, slot_y);
+            final String near = snapshot.getProbe(slot_x, slot_y);
+            inspect_text = near.isEmpty() ? contents : contents + " " + near;
+            inspect_snapshot = snapshot;
+            inspect_text_x = slot_x;
+            inspect_text_y = slot_y;
+        }
+        g.drawString(inspect_text, inspect_msg_x, inspect_msg_y);
+        if (current_cell != null) {
+            g.drawString(current_cell, 20, 120);
+        }
 
-        // Show the result.
-        g.drawImage(offscreenImage, 0, 0, this);
+        frameRate.mark();
+        metrics.recordFrame(update_nanos + System.nanoTime() - start);
+        update_nanos = 0;
         counter++;
         if ((counter % 100) == 0) {
-            LOGGER.info("Counter update : value=" + counter);
+            LOGGER.info("Counter update : value=" + counter + " " + metrics.summary());
         }
     }
 
+    /**
+     * everything is drawn into the frame by paint, nothing straight onto the
+     * screen
+     */
     public void update(Graphics g) {
         paint(g);
-        if (error_thrown) {
-            g.drawString(error_msg, 10, 100);
-        }
-        g.drawString(inspect_msg, inspect_msg_x, inspect_msg_y);
-        g.drawString(current_cell, 20, 120);
     }
 
     /**
@@ -189,9 +575,13 @@ public class MechZoneSimulationPanel extends JPanel
      * appears on the screen.
      */
     public void start() {
-        if (gameThread == null) {
-            gameThread = new Thread(this);
-            gameThread.start();
+        if (scheduler != null) {
+            scheduler.start();
+        }
+        if (renderLoop != null) {
+            renderLoop.start();
+        } else {
+            renderTimer.start();
         }
     }
 
@@ -200,33 +590,13 @@ public class MechZoneSimulationPanel extends JPanel
      * longer on the screen.
      */
     public void stop() {
-        if (gameThread != null) {
-            gameThread = null;
+        if (scheduler != null) {
+            scheduler.stop();
         }
-    }
-
-    /**
-     * THREAD SUPPORT The run() method is called when the applet's thread is
-     * started.
-     */
-    public void run() {
-        while (true) {
-            try {
-                try {
-                    if (!paused) {
-                        gameGrid.doTimeStep();
-                    }
-                } catch (Error e) {
-                    error_msg = e.getMessage();
-                    error_thrown = true;
-                }
-                if (gameGrid.getCount() % draw_every == 0) {
-                    repaint();
-                }
-                Thread.sleep(delay);
-            } catch (final InterruptedException e) {
-                stop();
-            }
+        if (renderLoop != null) {
+            renderLoop.stop();
+        } else {
+            renderTimer.stop();
         }
     }
 
@@ -241,11 +611,17 @@ public class MechZoneSimulationPanel extends JPanel
      */
     public boolean mouseMove(Event evt, int x, int y) {
         // find which slot we're pointing at
-        int slot_x = (int) ((float) x / scale);
-        int slot_y = (int) ((float) y / scale);
-        inspect_msg = gameGrid.getContents(slot_x, slot_y);
+        int slot_x = viewport.toWorldX(x);
+        int slot_y = viewport.toWorldY(y);
+        // what is there is looked up when the frame is drawn, from its snapshot
+        inspect_slot_x = slot_x;
+        inspect_slot_y = slot_y;
+        if (publisher != null) {
+            publisher.setProbe(slot_x, slot_y);
+        }
         inspect_msg_x = x;
         inspect_msg_y = y - 3;
+        frameChanged();
         return true;
     }
 
@@ -261,6 +637,8 @@ public class MechZoneSimulationPanel extends JPanel
     }
 
     public void mousePressed(final MouseEvent e) {
+        drag_x = e.getX();
+        drag_y = e.getY();
         eventOutput("Mouse pressed (# of clicks: "
                 + e.getClickCount() + ")", e);
     }
@@ -283,6 +661,27 @@ public class MechZoneSimulationPanel extends JPanel
                 + e.getClickCount() + ")", e);
     }
 
+    public void mouseMoved(final MouseEvent e) {
+        mouseMove(null, e.getX(), e.getY());
+    }
+
+    /**
+     * drag the world along with the mouse
+     */
+    public void mouseDragged(final MouseEvent e) {
+        setViewport(viewport.pan(drag_x - e.getX(), drag_y - e.getY()));
+        drag_x = e.getX();
+        drag_y = e.getY();
+    }
+
+    /**
+     * zoom in or out around the square under the mouse
+     */
+    public void mouseWheelMoved(final MouseWheelEvent e) {
+        final float factor = (float) Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation());
+        setViewport(viewport.zoomAt(e.getX(), e.getY(), factor));
+    }
+
     @Override
     public void keyTyped(final KeyEvent ke) {
         System.out.println(">>>> enter key");
@@ -304,10 +703,52 @@ public class MechZoneSimulationPanel extends JPanel
         if (c == KeyEvent.VK_DOWN) {
             y += 5;
         }
-        repaint();
+        switch (c) {
+            case KeyEvent.VK_A:
+                setViewport(viewport.pan(-PAN_STEP, 0));
+                break;
+            case KeyEvent.VK_D:
+                setViewport(viewport.pan(PAN_STEP, 0));
+                break;
+            case KeyEvent.VK_W:
+                setViewport(viewport.pan(0, -PAN_STEP));
+                break;
+            case KeyEvent.VK_S:
+                setViewport(viewport.pan(0, PAN_STEP));
+                break;
+            case KeyEvent.VK_EQUALS:
+            case KeyEvent.VK_PLUS:
+            case KeyEvent.VK_ADD:
+                setViewport(viewport.zoomAt(drawingSizeX / 2, drawingSizeY / 2, ZOOM_STEP));
+                break;
+            case KeyEvent.VK_MINUS:
+            case KeyEvent.VK_SUBTRACT:
+                setViewport(viewport.zoomAt(drawingSizeX / 2, drawingSizeY / 2, 1 / ZOOM_STEP));
+                break;
+            case KeyEvent.VK_HOME:
+                if (gameGrid != null) {
+                    setViewport(Viewport.fit(gameGrid.getWorld(), drawingSizeX, drawingSizeY));
+                }
+                break;
+            default:
+                break;
+        }
+        frameChanged();
         System.out.println(">>>> " + x);
     }
 
+    /**
+     * show input the snapshots don't carry, such as the player, on the next
+     * frame
+     */
+    private void frameChanged() {
+        if (renderLoop != null) {
+            renderLoop.requestFrame();
+        } else {
+            repaint();
+        }
+    }
+
     @Override
     public void keyReleased(final KeyEvent ke) {
     }
@@ -0,0 +1,253 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel time step over a GameWorldStore. The world is cut into vertical
+ * stripes one chunk column wide and each tick runs in three phases, stripes
+ * 0, 3, 6 .. then 1, 4, 7 .. then 2, 5, 8 ... A move never reaches further
+ * than one column out of its stripe and a reaction one column more, and
+ * waking a chunk never reaches further than the next chunk column, so
+ * stripes of the same phase never touch the same square, entity or chunk.
+ *
+ * Every stripe draws from its own generator, reseeded each tick from a seed
+ * the caller draws from the world's generator and the stripe index, so the
+ * result of a tick depends only on that generator's state and not on how
+ * many threads ran it, and a saved and reloaded run carries on the same.
+ */
+public class ParallelTickEngine {
+
+    /**
+     * log2 of the stripe width, one stripe per chunk column
+     */
+    static final int STRIPE_SHIFT = GameWorldStore.CHUNK_SHIFT;
+    static final int STRIPE_WIDTH = 1 << STRIPE_SHIFT;
+
+    private final GameWorldStore world;
+    private final ForkJoinPool pool;
+
+    private final int n_stripes;
+
+    /**
+     * entity ids bucketed by the stripe they started the tick in, the ids of
+     * stripe s are order[stripe_start[s]] .. order[stripe_start[s + 1] - 1]
+     */
+    private int order[] = new int[0];
+    private final int stripe_start[];
+
+    private final XoroshiroRandom stripe_random[];
+
+    /**
+     * moves tried, moves made and reactions in each stripe in the current
+     * tick
+     */
+    private final int stripe_attempts[];
+    private final int stripe_moves[];
+    private final int stripe_reactions[];
+
+    private long seed;
+    private ReactionRules reactions;
+    private TickStatistics statistics;
+
+    public ParallelTickEngine(final GameWorldStore world, final ForkJoinPool pool) {
+        this.world = world;
+        this.pool = pool;
+        n_stripes = (world.n_x + STRIPE_WIDTH - 1) >> STRIPE_SHIFT;
+        stripe_start = new int[n_stripes + 1];
+        stripe_attempts = new int[n_stripes];
+        stripe_moves = new int[n_stripes];
+        stripe_reactions = new int[n_stripes];
+        stripe_random = new XoroshiroRandom[n_stripes];
+        for (int s = 0; s < n_stripes; s++) {
+            stripe_random[s] = new XoroshiroRandom(0);
+        }
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * give each cell one chance to react, if there are rules, and to move,
+     * stripe by stripe, the stripes' generators seeded from seed, returns
+     * the number of cells that moved
+     */
+    public int step(final long seed, final ReactionRules reactions) {
+        return step(seed, reactions, null);
+    }
+
+    /**
+     * as step, counting each stripe's changes in its tally of the
+     * statistics if there are any
+     */
+    int step(final long seed, final ReactionRules reactions, final TickStatistics statistics) {
+        this.seed = seed;
+        this.reactions = reactions;
+        this.statistics = statistics;
+        bucketByStripe();
+        // on a torus the last stripe borders the first, so stripes left over
+        // from whole threes run one at a time after the phases
+        final int phased = world.wrap ? n_stripes - n_stripes % 3 : n_stripes;
+        for (int phase = 0; phase < 3; phase++) {
+            pool.invoke(new StripeTask(phase, 0, (phased - phase + 2) / 3));
+        }
+        for (int s = phased; s < n_stripes; s++) {
+            runStripe(s);
+        }
+        int moves = 0;
+        for (int s = 0; s < n_stripes; s++) {
+            moves += stripe_moves[s];
+        }
+        return moves;
+    }
+
+    public int getStripeCount() {
+        return n_stripes;
+    }
+
+    /**
+     * awake cells given a chance to move in the last step
+     */
+    public int getMoveAttempts() {
+        int n = 0;
+        for (int s = 0; s < n_stripes; s++) {
+            n += stripe_attempts[s];
+        }
+        return n;
+    }
+
+    /**
+     * reactions in the last step
+     */
+    public int getReactions() {
+        int n = 0;
+        for (int s = 0; s < n_stripes; s++) {
+            n += stripe_reactions[s];
+        }
+        return n;
+    }
+
+    /**
+     * counting sort of the ids by starting stripe, keeps id order inside a
+     * stripe so the processing order is fixed
+     */
+    private void bucketByStripe() {
+        final int n = world.n_ids;
+        final byte types[] = world.type;
+        final int xs[] = world.x;
+        if (order.length < n) {
+            order = new int[world.type.length];
+        }
+        final int pos[] = stripe_start;
+        Arrays.fill(pos, 0);
+        for (int id = 0; id < n; id++) {
+            if (types[id] != GameWorldStore.FREE) {
+                pos[(xs[id] >> STRIPE_SHIFT) + 1]++;
+            }
+        }
+        for (int s = 0; s < n_stripes; s++) {
+            pos[s + 1] += pos[s];
+        }
+        // use each stripe's start as a moving cursor, then shift back
+        for (int id = 0; id < n; id++) {
+            if (types[id] != GameWorldStore.FREE) {
+                order[pos[xs[id] >> STRIPE_SHIFT]++] = id;
+            }
+        }
+        for (int s = n_stripes; s > 0; s--) {
+            pos[s] = pos[s - 1];
+        }
+        pos[0] = 0;
+    }
+
+    private void runStripe(final int s) {
+        final XoroshiroRandom random = stripe_random[s];
+        random.setSeed(XoroshiroRandom.mix64(seed) + s);
+        final ReactionRules rules = reactions;
+        final TickStatistics stats = statistics;
+        final TickStatistics.Tally tally = stats != null ? stats.tally(s) : null;
+        final int census[] = tally != null ? tally.census : null;
+        final int end = stripe_start[s + 1];
+        int attempts = 0;
+        int moves = 0;
+        int reacted = 0;
+        long square_delta = 0;
+        for (int i = stripe_start[s]; i < end; i++) {
+            final int id = order[i];
+            if (!world.isAwake(id)) {
+                continue;
+            }
+            attempts++;
+            if (rules != null && Entity.react(world, id, rules, census)) {
+                reacted++;
+            }
+            final int from_x = world.x[id];
+            final int from_y = world.y[id];
+            if (Entity.makeMove(world, id, random)) {
+                moves++;
+                if (tally != null) {
+                    square_delta += stats.moved(id, from_x, from_y);
+                }
+            }
+        }
+        if (tally != null) {
+            tally.square_sum += square_delta;
+        }
+        stripe_attempts[s] = attempts;
+        stripe_moves[s] = moves;
+        stripe_reactions[s] = reacted;
+    }
+
+    /**
+     * runs the stripes 3 * lo + phase .. 3 * (hi - 1) + phase, splitting in
+     * half until a single stripe is left
+     */
+    private class StripeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int phase, lo, hi;
+
+        StripeTask(int phase, int lo, int hi) {
+            this.phase = phase;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (hi - lo <= 1) {
+                if (hi > lo) {
+                    runStripe(3 * lo + phase);
+                }
+                return;
+            }
+            final int mid = (lo + hi) >>> 1;
+            invokeAll(new StripeTask(phase, lo, mid), new StripeTask(phase, mid, hi));
+        }
+    }
+
+} // End of the class //
\ No newline at end of file
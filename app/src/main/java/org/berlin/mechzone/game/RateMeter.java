@@ -22,43 +22,34 @@
  */
 package org.berlin.mechzone.game;
 
-// SquirmCellSlot.java
-
 /**
- * Cell Slot.
+ * Measures how often something happens, averaged over windows of about a
+ * second. mark() is for a single thread, getRate() can be read from any.
  */
-public class
-GameCellSlot {
-
-    protected boolean has_occupant;
-    protected Entity occupant;
-
-    // Public constructor initializes size of grid
-    public GameCellSlot() {
-        has_occupant = false;
-    }
-
-    public void makeOccupied(Entity occ) {
-        if (has_occupant)
-            throw new Error("Cell: makeOccupied : already occupied!");
-
-        has_occupant = true;
-        occupant = occ;
-    }
-
-    public void makeEmpty() {
-        has_occupant = false;
+public class RateMeter {
+
+    private static final long WINDOW_NANOS = 1000000000L;
+
+    private long window_start = System.nanoTime();
+    private long events = 0;
+    private volatile double rate = 0;
+
+    public void mark() {
+        events++;
+        final long now = System.nanoTime();
+        final long elapsed = now - window_start;
+        if (elapsed >= WINDOW_NANOS) {
+            rate = events * 1e9 / elapsed;
+            events = 0;
+            window_start = now;
+        }
     }
 
-    public boolean queryEmpty() {
-        return !has_occupant;
+    /**
+     * events per second over the last complete window
+     */
+    public double getRate() {
+        return rate;
     }
 
-    public Entity getOccupant() {
-        // has_occupant is a necessary condition for calling this function
-        if (!has_occupant) {
-            throw new Error("getOccupant : no occupant!");
-        }
-        return occupant;
-    }
-} // End of the Class //
\ No newline at end of file
+} // End of the class //
\ No newline at end of file
@@ -0,0 +1,231 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A set of reactions between neighbouring entities, compiled into one dense
+ * table so that finding the reaction for a pair is a single array read, no
+ * matter how many rules there are.
+ *
+ * A rule reads "a1 + b0 -> a2b3": an a in state 1 next to a b in state 0,
+ * not bonded, becomes a2 bonded to b3. Joined atoms ("a1b0") are bonded,
+ * atoms separated by '+' are not, so a rule can make, break or keep a bond.
+ * The types are a to f as in EntityBase; x and y stand for any type, the
+ * same letter meaning the same type throughout the rule. Types never change
+ * in a reaction. Every rule also matches with the two atoms swapped, and
+ * where rules overlap the first one in the set wins.
+ */
+public class ReactionRules {
+
+    /**
+     * the rule set shipped with the game, Hutton's squirm3 replicator
+     */
+    public static final String DEFAULT_RULES = "replicator.txt";
+
+    private static final Pattern RULE = Pattern.compile(
+            "([a-fxy])(\\d+)(\\+?)([a-fxy])(\\d+)->([a-fxy])(\\d+)(\\+?)([a-fxy])(\\d+)");
+
+    private static final int X = -1;
+    private static final int Y = -2;
+
+    private static final int MATCH = 1 << 24;
+    private static final int BOND = 1 << 16;
+
+    /**
+     * outcome per (type a, state a, type b, state b, bonded), see index:
+     * 0 for no reaction, else MATCH | bonded after ? BOND | new state a << 8
+     * | new state b
+     */
+    private final int table[] = new int[EntityBase.MAX_TYPES * EntityBase.MAX_STATES
+            * EntityBase.MAX_TYPES * EntityBase.MAX_STATES * 2];
+
+    /**
+     * true for a (type, state) that appears in any rule, so entities that
+     * can never react skip looking at their neighbours
+     */
+    private final boolean reactive[] = new boolean[EntityBase.MAX_TYPES * EntityBase.MAX_STATES];
+
+    private final List<String> rules = new ArrayList<>();
+
+    public ReactionRules() {
+    }
+
+    /**
+     * the default rule set
+     */
+    public static ReactionRules defaults() {
+        try (InputStream in = ReactionRules.class.getResourceAsStream(DEFAULT_RULES)) {
+            if (in == null) {
+                throw new Error("ReactionRules : missing " + DEFAULT_RULES);
+            }
+            return read(in, DEFAULT_RULES);
+        } catch (IOException e) {
+            throw new Error("ReactionRules : can't read " + DEFAULT_RULES + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Load a rule file, one rule per line; blank lines and anything after a
+     * '#' are ignored.
+     */
+    public static ReactionRules load(final File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return read(in, file.getPath());
+        }
+    }
+
+    private static ReactionRules read(final InputStream in, final String name) throws IOException {
+        final ReactionRules rules = new ReactionRules();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        int n = 0;
+        while ((line = reader.readLine()) != null) {
+            n++;
+            final int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                rules.add(line);
+            } catch (Error e) {
+                throw new IOException(name + ":" + n + " : " + e.getMessage());
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * compile one more rule into the table, behind the rules already there
+     */
+    public void add(final String rule) {
+        final Matcher m = RULE.matcher(rule.replaceAll("\\s", ""));
+        if (!m.matches()) {
+            throw new Error("ReactionRules : can't read rule '" + rule.trim() + "'");
+        }
+        final int t1 = type(m.group(1).charAt(0));
+        final int s1 = state(m.group(2));
+        final boolean bonded = m.group(3).isEmpty();
+        final int t2 = type(m.group(4).charAt(0));
+        final int s2 = state(m.group(5));
+        final int new_s1 = state(m.group(7));
+        final boolean bonded_after = m.group(8).isEmpty();
+        final int new_s2 = state(m.group(10));
+        if (type(m.group(6).charAt(0)) != t1 || type(m.group(9).charAt(0)) != t2) {
+            throw new Error("ReactionRules : types can't change in rule '" + rule.trim() + "'");
+        }
+
+        // try every type for each variable, fixed types only match themselves
+        final int x_max = t1 == X || t2 == X ? EntityBase.MAX_TYPES : 1;
+        final int y_max = t1 == Y || t2 == Y ? EntityBase.MAX_TYPES : 1;
+        for (int x = 0; x < x_max; x++) {
+            for (int y = 0; y < y_max; y++) {
+                final int a = t1 == X ? x : t1 == Y ? y : t1;
+                final int b = t2 == X ? x : t2 == Y ? y : t2;
+                set(a, s1, b, s2, bonded, new_s1, new_s2, bonded_after);
+                set(b, s2, a, s1, bonded, new_s2, new_s1, bonded_after);
+            }
+        }
+        rules.add(rule.trim());
+    }
+
+    private void set(int ta, int sa, int tb, int sb, boolean bonded, int new_sa, int new_sb, boolean bonded_after) {
+        final int i = index(ta, sa, tb, sb, bonded);
+        if (table[i] == 0) {
+            table[i] = MATCH | (bonded_after ? BOND : 0) | new_sa << 8 | new_sb;
+        }
+        reactive[ta * EntityBase.MAX_STATES + sa] = true;
+    }
+
+    private static int type(final char c) {
+        return c == 'x' ? X : c == 'y' ? Y : EntityBase.getType(c);
+    }
+
+    private static int state(final String s) {
+        final int state;
+        try {
+            state = Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            throw new Error("ReactionRules : state " + s + " out of range");
+        }
+        if (state >= EntityBase.MAX_STATES) {
+            throw new Error("ReactionRules : state " + s + " out of range");
+        }
+        return state;
+    }
+
+    static int index(int ta, int sa, int tb, int sb, boolean bonded) {
+        return ((((ta * EntityBase.MAX_STATES + sa) * EntityBase.MAX_TYPES + tb) * EntityBase.MAX_STATES + sb) << 1)
+                | (bonded ? 1 : 0);
+    }
+
+    /**
+     * the packed outcome for a pair, 0 if they don't react
+     */
+    int lookup(int ta, int sa, int tb, int sb, boolean bonded) {
+        return table[index(ta, sa, tb, sb, bonded)];
+    }
+
+    boolean isReactive(int type, int state) {
+        return reactive[type * EntityBase.MAX_STATES + state];
+    }
+
+    static int newStateA(int outcome) {
+        return (outcome >> 8) & 0xFF;
+    }
+
+    static int newStateB(int outcome) {
+        return outcome & 0xFF;
+    }
+
+    static boolean bondedAfter(int outcome) {
+        return (outcome & BOND) != 0;
+    }
+
+    /**
+     * the rules in the order they were added
+     */
+    public List<String> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    public int size() {
+        return rules.size();
+    }
+
+} // End of the class //
\ No newline at end of file
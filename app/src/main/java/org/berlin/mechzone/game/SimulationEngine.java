@@ -0,0 +1,136 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Advances a GameGraphicsGrid and tells its observers about each step. Has
+ * no UI and no timing of its own, so it can run headless as fast as the
+ * world allows or be driven by the Swing game thread.
+ */
+public class SimulationEngine {
+
+    private final GameGraphicsGrid grid;
+
+    private final List<SimulationObserver> observers = new CopyOnWriteArrayList<>();
+
+    /**
+     * totals since the engine was created: ticks run, cells given a chance
+     * to move and cells that actually moved
+     */
+    private long ticks = 0;
+    private long updates = 0;
+    private long moves = 0;
+
+    /**
+     * wall time of the last time step, not counting the observers, and the
+     * moves tried and reactions in it
+     */
+    private long last_tick_nanos = 0;
+    private int last_move_attempts = 0;
+    private int last_reactions = 0;
+
+    public SimulationEngine(final GameGraphicsGrid grid) {
+        this.grid = grid;
+    }
+
+    public GameGraphicsGrid getGrid() {
+        return grid;
+    }
+
+    public void addObserver(final SimulationObserver observer) {
+        observers.add(observer);
+    }
+
+    public void removeObserver(final SimulationObserver observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     * run one time step and notify the observers, returns the number of
+     * cells that moved
+     */
+    public int step() {
+        final int entities = grid.getWorld().size();
+        final long attempts = grid.getMoveAttempts();
+        final long reactions = grid.getReactionCount();
+        final long start = System.nanoTime();
+        final int moved = grid.doTimeStep();
+        last_tick_nanos = System.nanoTime() - start;
+        last_move_attempts = (int) (grid.getMoveAttempts() - attempts);
+        last_reactions = (int) (grid.getReactionCount() - reactions);
+        ticks++;
+        updates += entities;
+        moves += moved;
+        for (final SimulationObserver observer : observers) {
+            observer.tickCompleted(this, moved);
+        }
+        return moved;
+    }
+
+    /**
+     * tell the observers the world is standing still between time steps, so
+     * they can catch up with requests made since the last one
+     */
+    public void idle() {
+        for (final SimulationObserver observer : observers) {
+            observer.idle(this);
+        }
+    }
+
+    /**
+     * run the given number of time steps back to back
+     */
+    public void run(final long n_ticks) {
+        for (long i = 0; i < n_ticks; i++) {
+            step();
+        }
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    public long getUpdates() {
+        return updates;
+    }
+
+    public long getMoves() {
+        return moves;
+    }
+
+    public long getLastTickNanos() {
+        return last_tick_nanos;
+    }
+
+    public int getLastMoveAttempts() {
+        return last_move_attempts;
+    }
+
+    public int getLastReactions() {
+        return last_reactions;
+    }
+
+} // End of the class //
\ No newline at end of file
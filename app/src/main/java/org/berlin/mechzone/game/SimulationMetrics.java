@@ -0,0 +1,449 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of a running simulation: tick rate, tick latency histograms, moves
+ * tried and made, reactions, entity counts per type and state, render frame
+ * time and bytes allocated per tick. Add it as an observer of the engine;
+ * frame times come from the renderer through recordFrame.
+ *
+ * Everything is readable over JMX once registered. Every report interval,
+ * on the simulation thread, the entities are counted and a line is written
+ * to the dump file if there is one, CSV or, for a .json file, one JSON
+ * object per line. In a line the rates, latencies and counts cover the
+ * interval since the line before, tick and ticks are totals. A tick slower
+ * than the slow tick threshold is counted, and an interval whose p99 is over
+ * it is logged as a warning.
+ *
+ * Allocation is read from the simulation thread's allocation counter, so it
+ * counts the observers too and leaves out the stripe-parallel pool threads.
+ */
+public class SimulationMetrics implements SimulationObserver, SimulationMetricsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(SimulationMetrics.class);
+
+    public static final String DOMAIN = "org.berlin.mechzone";
+
+    private static final int STATES = 256;
+
+    private static final String CSV_HEADER = "time_ms,tick,ticks,ticks_per_sec,tick_mean_ms,tick_p50_ms,tick_p99_ms,"
+            + "tick_p999_ms,tick_max_ms,slow_ticks,move_attempts,moves,reactions,entities,alloc_bytes_per_tick,"
+            + "frame_p50_ms,frame_p99_ms";
+
+    private final String name;
+    private ObjectName object_name = null;
+
+    /**
+     * whole run, and since the last report
+     */
+    private final LatencyHistogram tick_latency = new LatencyHistogram();
+    private final LatencyHistogram frame_time = new LatencyHistogram();
+    private final LatencyHistogram interval_latency = new LatencyHistogram();
+    private final LatencyHistogram interval_frames = new LatencyHistogram();
+
+    private final RateMeter tick_rate = new RateMeter();
+
+    /**
+     * written by the simulation thread only
+     */
+    private volatile long tick = 0;
+    private volatile long ticks = 0;
+    private volatile long move_attempts = 0;
+    private volatile long moves = 0;
+    private volatile long reactions = 0;
+    private volatile long slow_ticks = 0;
+    private volatile int entities = 0;
+    private volatile long alloc_per_tick = -1;
+    private volatile Map<String, Long> entity_counts = Collections.emptyMap();
+
+    private volatile long slow_tick_nanos = 0;
+    private volatile long report_every_nanos = 10000000000L;
+
+    /**
+     * allocation counter of the simulation thread, null if there is none
+     */
+    private final com.sun.management.ThreadMXBean thread_bean;
+    private long alloc_thread = -1;
+    private long alloc_last = 0;
+    private long interval_alloc = 0;
+    private long interval_alloc_ticks = 0;
+
+    /**
+     * state at the last report
+     */
+    private long report_time = System.nanoTime();
+    private long report_ticks = 0;
+    private long report_attempts = 0;
+    private long report_moves = 0;
+    private long report_reactions = 0;
+
+    private Writer out = null;
+    private boolean json = false;
+
+    /**
+     * the grid of the last tick seen
+     */
+    private GameGraphicsGrid grid = null;
+
+    public SimulationMetrics(final String name) {
+        this.name = name;
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            thread_bean = (com.sun.management.ThreadMXBean) bean;
+            thread_bean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            thread_bean = null;
+        }
+    }
+
+    /**
+     * count and log ticks slower than this, 0 for no threshold
+     */
+    public void setSlowTickMillis(final double millis) {
+        slow_tick_nanos = (long) (millis * 1e6);
+    }
+
+    /**
+     * how often to count the entities and write a line to the dump
+     */
+    public void setReportSeconds(final double seconds) {
+        report_every_nanos = (long) (seconds * 1e9);
+    }
+
+    /**
+     * Write a line to the file every report interval, replacing the file.
+     * JSON lines if the name ends in .json, otherwise CSV.
+     */
+    public void startDump(final File file) throws IOException {
+        json = file.getName().toLowerCase(Locale.ROOT).endsWith(".json");
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        if (!json) {
+            out.write(CSV_HEADER);
+            for (int t = 0; t < EntityBase.MAX_TYPES; t++) {
+                out.write("," + EntityBase.getStringType(t));
+            }
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    /**
+     * make the metrics visible over JMX, replacing any registered under the
+     * same name
+     */
+    public void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName on = new ObjectName(DOMAIN + ":type=SimulationMetrics,name=" + name);
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(this, on);
+            object_name = on;
+        } catch (JMException e) {
+            LOGGER.warn("Couldn't register metrics over JMX : " + e.getMessage());
+        }
+    }
+
+    /**
+     * time taken to render one frame, from any thread
+     */
+    public void recordFrame(final long nanos) {
+        frame_time.record(nanos);
+        interval_frames.record(nanos);
+    }
+
+    /**
+     * runs on the simulation thread after every tick
+     */
+    public void tickCompleted(final SimulationEngine engine, final int moved) {
+        grid = engine.getGrid();
+        final long nanos = engine.getLastTickNanos();
+        tick_latency.record(nanos);
+        interval_latency.record(nanos);
+        tick_rate.mark();
+        if (slow_tick_nanos > 0 && nanos > slow_tick_nanos) {
+            slow_ticks++;
+        }
+        tick = grid.getCount();
+        ticks++;
+        moves += moved;
+        move_attempts += engine.getLastMoveAttempts();
+        reactions += engine.getLastReactions();
+        entities = grid.getWorld().size();
+
+        if (thread_bean != null) {
+            final long thread = Thread.currentThread().getId();
+            final long allocated = thread_bean.getThreadAllocatedBytes(thread);
+            if (thread == alloc_thread && allocated >= alloc_last) {
+                interval_alloc += allocated - alloc_last;
+                interval_alloc_ticks++;
+            }
+            alloc_thread = thread;
+            alloc_last = allocated;
+        }
+
+        final long now = System.nanoTime();
+        if (now - report_time >= report_every_nanos) {
+            report(now);
+        }
+    }
+
+    /**
+     * count the entities, publish the interval's figures and start a new
+     * interval
+     */
+    private void report(final long now) {
+        final GameWorldStore world = grid.getWorld();
+        final long counts[] = new long[EntityBase.MAX_TYPES * STATES];
+        final int n = world.getIdLimit();
+        for (int id = 0; id < n; id++) {
+            if (world.type[id] == GameWorldStore.FREE) {
+                continue;
+            }
+            counts[world.type[id] * STATES + (world.state[id] & 0xFF)]++;
+        }
+        final Map<String, Long> by_state = new LinkedHashMap<>();
+        final long by_type[] = new long[EntityBase.MAX_TYPES];
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                by_state.put(EntityBase.getStringType(i / STATES) + (i % STATES), counts[i]);
+                by_type[i / STATES] += counts[i];
+            }
+        }
+        entity_counts = Collections.unmodifiableMap(by_state);
+        if (interval_alloc_ticks > 0) {
+            alloc_per_tick = interval_alloc / interval_alloc_ticks;
+        }
+
+        final double secs = (now - report_time) / 1e9;
+        final double p99 = interval_latency.getValueAtPercentile(99) / 1e6;
+        if (slow_tick_nanos > 0 && p99 > slow_tick_nanos / 1e6) {
+            LOGGER.warn(String.format(Locale.ROOT, "Slow ticks : p99=%.3fms over %.3fms at tick %d",
+                    p99, slow_tick_nanos / 1e6, tick));
+        }
+        if (out != null) {
+            final Object values[] = {
+                    System.currentTimeMillis(), tick, ticks, (ticks - report_ticks) / secs,
+                    interval_latency.getMean() / 1e6, interval_latency.getValueAtPercentile(50) / 1e6, p99,
+                    interval_latency.getValueAtPercentile(99.9) / 1e6, interval_latency.getMax() / 1e6,
+                    slow_ticks, move_attempts - report_attempts, moves - report_moves,
+                    reactions - report_reactions, entities, alloc_per_tick,
+                    interval_frames.getValueAtPercentile(50) / 1e6, interval_frames.getValueAtPercentile(99) / 1e6 };
+            try {
+                out.write(json ? jsonLine(values, by_type, by_state) : csvLine(values, by_type));
+                out.flush();
+            } catch (IOException e) {
+                LOGGER.error("Metrics dump failed, stopping it", e);
+                closeDump();
+            }
+        }
+
+        interval_latency.reset();
+        interval_frames.reset();
+        interval_alloc = 0;
+        interval_alloc_ticks = 0;
+        report_time = now;
+        report_ticks = ticks;
+        report_attempts = move_attempts;
+        report_moves = moves;
+        report_reactions = reactions;
+    }
+
+    private static String format(final Object value) {
+        return value instanceof Double ? String.format(Locale.ROOT, "%.3f", (Double) value) : String.valueOf(value);
+    }
+
+    private static String csvLine(final Object values[], final long by_type[]) {
+        final StringBuilder line = new StringBuilder();
+        for (final Object value : values) {
+            line.append(line.length() == 0 ? "" : ",").append(format(value));
+        }
+        for (final long count : by_type) {
+            line.append(',').append(count);
+        }
+        return line.append('\n').toString();
+    }
+
+    private static String jsonLine(final Object values[], final long by_type[], final Map<String, Long> by_state) {
+        final String names[] = CSV_HEADER.split(",");
+        final StringBuilder line = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            line.append('"').append(names[i]).append("\":").append(format(values[i])).append(',');
+        }
+        line.append("\"types\":{");
+        for (int t = 0; t < by_type.length; t++) {
+            line.append(t == 0 ? "" : ",").append('"').append(EntityBase.getStringType(t)).append("\":")
+                    .append(by_type[t]);
+        }
+        line.append("},\"states\":{");
+        boolean first = true;
+        for (final Map.Entry<String, Long> e : by_state.entrySet()) {
+            line.append(first ? "" : ",").append('"').append(e.getKey()).append("\":").append(e.getValue());
+            first = false;
+        }
+        return line.append("}}\n").toString();
+    }
+
+    private void closeDump() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.error("Closing the metrics dump failed", e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Write a last report, close the dump and unregister from JMX. Call it
+     * from the simulation thread or once the simulation has stopped.
+     */
+    public void close() {
+        if (grid != null) {
+            report(System.nanoTime());
+        }
+        closeDump();
+        if (object_name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(object_name);
+            } catch (JMException e) {
+                LOGGER.warn("Couldn't unregister metrics : " + e.getMessage());
+            }
+            object_name = null;
+        }
+    }
+
+    /**
+     * one line for the log
+     */
+    public String summary() {
+        return String.format(Locale.ROOT, "tick=%d ticks/sec=%.1f tick p50=%.3fms p99=%.3fms max=%.3fms"
+                        + " moves=%.1f%% frame p99=%.3fms alloc/tick=%d", tick, getTicksPerSecond(),
+                getTickP50Millis(), getTickP99Millis(), getTickMaxMillis(), 100 * getMoveSuccessRatio(),
+                getFrameP99Millis(), alloc_per_tick);
+    }
+
+    // ----------------------------------------------------------
+
+    public long getTick() {
+        return tick;
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    public double getTicksPerSecond() {
+        return tick_rate.getRate();
+    }
+
+    public double getTickMeanMillis() {
+        return tick_latency.getMean() / 1e6;
+    }
+
+    public double getTickP50Millis() {
+        return tick_latency.getValueAtPercentile(50) / 1e6;
+    }
+
+    public double getTickP99Millis() {
+        return tick_latency.getValueAtPercentile(99) / 1e6;
+    }
+
+    public double getTickP999Millis() {
+        return tick_latency.getValueAtPercentile(99.9) / 1e6;
+    }
+
+    public double getTickMaxMillis() {
+        return tick_latency.getMax() / 1e6;
+    }
+
+    public long getSlowTicks() {
+        return slow_ticks;
+    }
+
+    public long getMoveAttempts() {
+        return move_attempts;
+    }
+
+    public long getMoves() {
+        return moves;
+    }
+
+    public double getMoveSuccessRatio() {
+        final long attempts = move_attempts;
+        return attempts == 0 ? 0 : moves / (double) attempts;
+    }
+
+    public long getReactions() {
+        return reactions;
+    }
+
+    public int getEntities() {
+        return entities;
+    }
+
+    public long getAllocatedBytesPerTick() {
+        return alloc_per_tick;
+    }
+
+    public double getFrameP50Millis() {
+        return frame_time.getValueAtPercentile(50) / 1e6;
+    }
+
+    public double getFrameP99Millis() {
+        return frame_time.getValueAtPercentile(99) / 1e6;
+    }
+
+    public Map<String, Long> getEntityCounts() {
+        return entity_counts;
+    }
+
+    public void resetHistograms() {
+        tick_latency.reset();
+        frame_time.reset();
+    }
+
+} // End of the class //
\ No newline at end of file
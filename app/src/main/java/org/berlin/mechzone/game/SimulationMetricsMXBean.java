@@ -0,0 +1,87 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.util.Map;
+
+/**
+ * JMX view of a SimulationMetrics, registered under
+ * org.berlin.mechzone:type=SimulationMetrics,name=...
+ */
+public interface SimulationMetricsMXBean {
+
+    long getTick();
+
+    long getTicks();
+
+    double getTicksPerSecond();
+
+    double getTickMeanMillis();
+
+    double getTickP50Millis();
+
+    double getTickP99Millis();
+
+    double getTickP999Millis();
+
+    double getTickMaxMillis();
+
+    /**
+     * ticks slower than the slow tick threshold, 0 if there is none
+     */
+    long getSlowTicks();
+
+    long getMoveAttempts();
+
+    long getMoves();
+
+    /**
+     * moves made over moves attempted
+     */
+    double getMoveSuccessRatio();
+
+    long getReactions();
+
+    int getEntities();
+
+    /**
+     * bytes allocated by the simulation thread per tick, averaged over the
+     * last report interval, -1 if the JVM can't measure it
+     */
+    long getAllocatedBytesPerTick();
+
+    double getFrameP50Millis();
+
+    double getFrameP99Millis();
+
+    /**
+     * entities per type and state, such as "a0", as of the last report
+     */
+    Map<String, Long> getEntityCounts();
+
+    /**
+     * forget the latency and frame histograms
+     */
+    void resetHistograms();
+
+} // End of the interface //
\ No newline at end of file
@@ -0,0 +1,200 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a SimulationEngine on its own thread at a fixed target tick rate, or
+ * as fast as it can when the rate is 0. Falling behind is caught up with
+ * back to back ticks, up to MAX_CATCH_UP ticks, after which the lag is
+ * dropped rather than spiralling.
+ *
+ * A tick that throws pauses the scheduler with the error kept for the
+ * display, rather than stepping a world the failed tick may have left half
+ * updated; the error is cleared by the next tick that completes.
+ */
+public class SimulationScheduler implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(SimulationScheduler.class);
+
+    private static final int MAX_CATCH_UP = 5;
+    private static final long PAUSE_POLL_NANOS = 20000000L;
+
+    private final SimulationEngine engine;
+
+    private volatile long tick_period_nanos = 0;
+    private volatile boolean paused = false;
+    private volatile boolean running = false;
+
+    private volatile String last_error = null;
+
+    private final RateMeter tick_rate = new RateMeter();
+
+    private Thread thread = null;
+
+    public SimulationScheduler(final SimulationEngine engine) {
+        this.engine = engine;
+    }
+
+    public SimulationEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * target ticks per second, 0 or less runs unthrottled
+     */
+    public void setTargetTickRate(final double ticks_per_second) {
+        tick_period_nanos = ticks_per_second > 0 ? (long) (1e9 / ticks_per_second) : 0;
+        wake();
+    }
+
+    public double getTargetTickRate() {
+        final long period = tick_period_nanos;
+        return period > 0 ? 1e9 / period : 0;
+    }
+
+    /**
+     * measured ticks per second
+     */
+    public double getTickRate() {
+        return tick_rate.getRate();
+    }
+
+    public void setPaused(final boolean pause) {
+        paused = pause;
+        wake();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * message of the error that paused the simulation, or null once a tick
+     * has completed since
+     */
+    public String getLastError() {
+        return last_error;
+    }
+
+    /**
+     * true between start and stop
+     */
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    public synchronized void start() {
+        if (thread == null) {
+            running = true;
+            thread = new Thread(this, "simulation");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * stop the simulation thread and wait for the tick in progress to finish
+     */
+    public void stop() {
+        final Thread t;
+        synchronized (this) {
+            t = thread;
+            if (t == null) {
+                return;
+            }
+            running = false;
+            thread = null;
+        }
+        LockSupport.unpark(t);
+        if (t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void wake() {
+        final Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    private void idle() {
+        try {
+            engine.idle();
+        } catch (RuntimeException | Error e) {
+            final String error = String.valueOf(e);
+            if (!error.equals(last_error)) {
+                // idles again every poll, only log a new error
+                LOGGER.error("Error between time steps : " + e, e);
+            }
+            last_error = error;
+        }
+    }
+
+    public void run() {
+        long next_tick = System.nanoTime();
+        while (running) {
+            if (paused) {
+                idle();
+                LockSupport.parkNanos(PAUSE_POLL_NANOS);
+                next_tick = System.nanoTime();
+                continue;
+            }
+            final long period = tick_period_nanos;
+            if (period > 0) {
+                final long wait = next_tick - System.nanoTime();
+                if (wait > 0) {
+                    // a slow tick rate shouldn't hold up a new view
+                    idle();
+                    LockSupport.parkNanos(Math.min(wait, PAUSE_POLL_NANOS));
+                    continue;
+                }
+            }
+            try {
+                engine.step();
+                last_error = null;
+            } catch (RuntimeException | Error e) {
+                last_error = "Paused, error in time step : " + e;
+                LOGGER.error("Error in time step, pausing : " + e, e);
+                paused = true;
+                continue;
+            }
+            tick_rate.mark();
+            if (period > 0) {
+                next_tick += period;
+                if (System.nanoTime() - next_tick > MAX_CATCH_UP * period) {
+                    next_tick = System.nanoTime();
+                }
+            }
+        }
+    }
+
+} // End of the class //
\ No newline at end of file
@@ -0,0 +1,213 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands world snapshots from the simulation thread to a single reader such
+ * as the renderer, without locks. A new snapshot is only captured once the
+ * reader has taken the previous one, so a fast simulation costs at most one
+ * copy per frame and the ticks in between are folded into the next
+ * snapshot's changes.
+ *
+ * Three snapshot buffers rotate: the reader keeps the one it is showing and
+ * the one before it (which an incremental update still looks at), and the
+ * simulation fills the third. A buffer is only handed back for refilling on
+ * the reader's next take, so a reader never sees a half-written snapshot and
+ * the tick never waits for a reader.
+ */
+public class SnapshotPublisher implements SimulationObserver {
+
+    private static final int BUFFERS = 3;
+
+    /**
+     * newest published snapshot the reader has not taken yet, or null
+     */
+    private final AtomicReference<WorldSnapshot> ready = new AtomicReference<>();
+
+    /**
+     * a buffer the reader is finished with, or null
+     */
+    private final AtomicReference<WorldSnapshot> free = new AtomicReference<>();
+
+    /**
+     * simulation side: the last snapshot published and buffers created
+     */
+    private WorldSnapshot published;
+    private int allocated = 0;
+
+    /**
+     * reader side: the snapshot being shown and the one shown before it
+     */
+    private WorldSnapshot taken = null;
+    private WorldSnapshot retired = null;
+
+    /**
+     * publish at most every this many ticks
+     */
+    private volatile int publish_every = 1;
+
+    /**
+     * radius of the neighbourhood summarised around the probed square
+     */
+    public static final int PROBE_RADIUS = 8;
+
+    /**
+     * square a reader wants summarised in each snapshot, x << 32 | y, or -1
+     * for none; queried on the simulation thread
+     */
+    private volatile long probe = -1;
+    private WorldQuery query = null;
+
+    /**
+     * view a reader wants the snapshots cut down to, or null for a copy of
+     * every entity
+     */
+    private volatile Viewport viewport = null;
+
+    public SnapshotPublisher(final GameGraphicsGrid grid) {
+        published = WorldSnapshot.capture(grid.getWorld(), grid.getCount(), null);
+        allocated = 1;
+        ready.set(published);
+    }
+
+    public void setPublishEvery(final int every) {
+        publish_every = Math.max(1, every);
+    }
+
+    public int getPublishEvery() {
+        return publish_every;
+    }
+
+    /**
+     * Look up what is on a square and summarise the entities around it in
+     * the snapshots from now on, for a hover inspector. A negative x turns
+     * it off.
+     */
+    public void setProbe(int px, int py) {
+        probe = px < 0 ? -1 : ((long) px << 32) | (py & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Take snapshots of only what a view shows from now on, or of the whole
+     * world again if null. A new view is published without waiting for the
+     * next tick, even while the simulation is paused.
+     */
+    public void setViewport(final Viewport view) {
+        viewport = view;
+    }
+
+    public Viewport getViewport() {
+        return viewport;
+    }
+
+    /**
+     * runs on the simulation thread after every tick
+     */
+    public void tickCompleted(final SimulationEngine engine, final int moves) {
+        final GameGraphicsGrid grid = engine.getGrid();
+        if (ready.get() != null || grid.getCount() - published.tick < publish_every) {
+            return;
+        }
+        publish(grid);
+    }
+
+    /**
+     * runs on the simulation thread between ticks, republishes the world if
+     * the reader has changed the view or the probed square since the last
+     * snapshot
+     */
+    public void idle(final SimulationEngine engine) {
+        if (ready.get() == null && (published.getViewport() != viewport || published.probed != probe)) {
+            publish(engine.getGrid());
+        }
+    }
+
+    private void publish(final GameGraphicsGrid grid) {
+        WorldSnapshot buffer = free.getAndSet(null);
+        if (buffer == null) {
+            if (allocated == BUFFERS) {
+                // reader still holds every other buffer, try again next tick
+                return;
+            }
+            buffer = new WorldSnapshot();
+            allocated++;
+        }
+        final Viewport view = viewport;
+        if (view != null) {
+            buffer.fillWindow(grid.getWorld(), grid.getCount(), published, view);
+        } else {
+            buffer.fill(grid.getWorld(), grid.getCount(), published);
+        }
+        final long p = probe;
+        if (p != -1) {
+            if (query == null || query.getWorld() != grid.getWorld()) {
+                query = new WorldQuery(grid.getWorld());
+            }
+            final int px = (int) (p >> 32);
+            final int py = (int) p;
+            buffer.setProbe(px, py, grid.getContents(px, py), summarise(query, px, py));
+        }
+        published = buffer;
+        ready.set(buffer);
+    }
+
+    /**
+     * the entities of each type within PROBE_RADIUS of a square, "" if none
+     */
+    static String summarise(final WorldQuery query, int px, int py) {
+        final GameWorldStore world = query.getWorld();
+        final int counts[] = new int[EntityBase.MAX_TYPES];
+        for (final int id : query.within(px, py, PROBE_RADIUS, WorldQuery.ANY, WorldQuery.ANY)) {
+            counts[world.type[id]]++;
+        }
+        final StringBuilder text = new StringBuilder();
+        for (int t = 0; t < counts.length; t++) {
+            if (counts[t] > 0) {
+                text.append(text.length() == 0 ? "near " : " ").append(EntityBase.getStringType(t)).append(':')
+                        .append(counts[t]);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * The newest snapshot if the reader has not taken it yet, else null.
+     * Must always be called from the same reader thread; the snapshot stays
+     * valid until the second take after it.
+     */
+    public WorldSnapshot take() {
+        final WorldSnapshot snapshot = ready.getAndSet(null);
+        if (snapshot == null) {
+            return null;
+        }
+        if (retired != null) {
+            free.set(retired);
+        }
+        retired = taken;
+        taken = snapshot;
+        return snapshot;
+    }
+
+} // End of the class //
\ No newline at end of file
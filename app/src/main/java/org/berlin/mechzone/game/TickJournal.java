@@ -0,0 +1,466 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Append-only journal of a run, for reproducing it exactly. After every tick
+ * the entities whose square, state or bonds changed, or that were added or
+ * removed, are written as deltas, and every snapshot_every ticks the whole
+ * world is saved as a WorldFile in the background; a JournalReplay combines
+ * the two to rebuild the world at any tick.
+ *
+ * Deltas are found by comparing against a copy of the types, positions,
+ * states and bond lists from the last tick, so the move kernel is not
+ * touched. They are packed into direct buffers on the simulation thread and
+ * written out by a background thread, the simulation only waits if the disk
+ * falls behind by more than all the buffers.
+ *
+ * Files in the journal directory:
+ *
+ * <pre>
+ * journal.mzj         HEADER_SIZE byte header: MAGIC, VERSION, n_x, n_y,
+ *                     long start tick; then for each tick the changed
+ *                     entities in id order and an end of tick record
+ * journal.idx         long tick, long journal offset after that tick,
+ *                     one pair per snapshot
+ * snapshot-tick.mzw   the world at the end of that tick
+ * </pre>
+ *
+ * An entity record starts with a varint of gap << 3 | kind, where gap is
+ * the id less the previous id in the tick (the first counts from -1), so in
+ * a busy world most moves take two bytes:
+ *
+ * <pre>
+ * MOVE        byte direction, (dx + 1) * 3 + dy + 1
+ * STATE       byte state
+ * MOVE_STATE  byte direction, byte state
+ * FULL        varint x, varint y, byte type, byte state, for ids that were
+ *             free at the end of the last tick, a change of type and
+ *             anything that is not a one square move
+ * REMOVE      nothing, the entity was removed and its id is free
+ * BONDS       byte count, varint partner for each, the entity's whole bond
+ *             list; follows the entity's other record, if any, with gap 0
+ * </pre>
+ *
+ * Only the end of tick states are compared, so an id removed and handed
+ * out again within one tick is written as whatever changed from the old
+ * entity to the new one, which rebuilds the same world.
+ *
+ * The end of tick record is a zero varint, then byte random kind, long
+ * tick, long random state 0, long random state 1, all little endian.
+ */
+public class TickJournal implements SimulationObserver {
+
+    private static final Logger LOGGER = Logger.getLogger(TickJournal.class);
+
+    public static final int MAGIC = 0x4D5A4A4C; // "MZJL"
+    public static final int VERSION = 3;
+
+    static final int HEADER_SIZE = 32;
+
+    static final int MOVE = 0;
+    static final int STATE = 1;
+    static final int MOVE_STATE = 2;
+    static final int FULL = 3;
+    static final int BONDS = 4;
+    static final int REMOVE = 5;
+
+    static final int KIND_BITS = 3;
+    static final int KIND_MASK = (1 << KIND_BITS) - 1;
+
+    /**
+     * no record is longer than this
+     */
+    static final int MAX_RECORD = 32;
+
+    static final String JOURNAL_FILE = "journal.mzj";
+    static final String INDEX_FILE = "journal.idx";
+
+    static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private static final int BATCH_BYTES = 1 << 20;
+    private static final int BUFFERS = 8;
+
+    /**
+     * hand a part-filled batch to the writer after this long anyway, so a
+     * quiet run still reaches the disk
+     */
+    private static final long FLUSH_NANOS = 100000000L;
+
+    private final GameGraphicsGrid grid;
+    private final File dir;
+    private final int snapshot_every;
+
+    private final FileChannel channel;
+    private final FileChannel index;
+
+    /**
+     * batches filled by the simulation, and emptied ones coming back
+     */
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BUFFERS + 1);
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFERS);
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    private ByteBuffer batch;
+    private long last_flush;
+
+    /**
+     * journal bytes handed to the writer, including the header
+     */
+    private long offset = HEADER_SIZE;
+
+    /**
+     * types, positions, states and bond lists at the end of the last tick
+     */
+    private int prev_n;
+    private byte prev_type[];
+    private int prev_x[], prev_y[];
+    private byte prev_state[];
+    private byte prev_n_bonds[];
+    private int prev_bonds[];
+
+    private final Thread writer;
+    private final BackgroundSaver saver = new BackgroundSaver("journal-snapshot");
+    private volatile String write_error = null;
+
+    /**
+     * Start a journal of the grid in the given directory, replacing any
+     * journal already there. The grid must not be stepped until this
+     * returns; add the journal as an observer of the engine stepping it.
+     */
+    public TickJournal(final GameGraphicsGrid grid, final File dir, final int snapshot_every) throws IOException {
+        this.grid = grid;
+        this.dir = dir;
+        this.snapshot_every = Math.max(1, snapshot_every);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create journal directory " + dir);
+        }
+        channel = open(new File(dir, JOURNAL_FILE));
+        index = open(new File(dir, INDEX_FILE));
+
+        final GameWorldStore world = grid.getWorld();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(world.n_x);
+        header.putInt(world.n_y);
+        header.putLong(grid.getCount());
+        // the whole header, padding included
+        header.rewind();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+
+        prev_type = Arrays.copyOf(world.type, world.type.length);
+        prev_x = Arrays.copyOf(world.x, world.x.length);
+        prev_y = Arrays.copyOf(world.y, world.y.length);
+        prev_state = Arrays.copyOf(world.state, world.state.length);
+        prev_n_bonds = Arrays.copyOf(world.n_bonds, world.n_bonds.length);
+        prev_bonds = Arrays.copyOf(world.bonds, world.bonds.length);
+        prev_n = world.getIdLimit();
+        snapshot(grid.getCount());
+
+        for (int i = 0; i < BUFFERS - 1; i++) {
+            free.add(ByteBuffer.allocateDirect(BATCH_BYTES).order(ORDER));
+        }
+        batch = ByteBuffer.allocateDirect(BATCH_BYTES).order(ORDER);
+        last_flush = System.nanoTime();
+
+        writer = new Thread(this::write, "journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static FileChannel open(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        return raf.getChannel();
+    }
+
+    /**
+     * journal bytes handed to the writer so far
+     */
+    public long getBytesWritten() {
+        return offset;
+    }
+
+    /**
+     * runs on the simulation thread after every tick
+     */
+    public void tickCompleted(final SimulationEngine engine, final int moves) {
+        if (write_error != null) {
+            throw new Error("Journal write failed : " + write_error);
+        }
+        final GameWorldStore world = grid.getWorld();
+        final int n = world.getIdLimit();
+        if (n > prev_x.length) {
+            prev_type = Arrays.copyOf(prev_type, world.type.length);
+            prev_x = Arrays.copyOf(prev_x, world.x.length);
+            prev_y = Arrays.copyOf(prev_y, world.y.length);
+            prev_state = Arrays.copyOf(prev_state, world.state.length);
+            prev_n_bonds = Arrays.copyOf(prev_n_bonds, world.n_bonds.length);
+            prev_bonds = Arrays.copyOf(prev_bonds, world.bonds.length);
+        }
+        final byte types[] = world.type;
+        final int xs[] = world.x;
+        final int ys[] = world.y;
+        final byte states[] = world.state;
+        final byte n_bonds[] = world.n_bonds;
+        int last_id = -1;
+        for (int id = 0; id < n; id++) {
+            final boolean was_live = id < prev_n && prev_type[id] != GameWorldStore.FREE;
+            if (types[id] == GameWorldStore.FREE) {
+                if (was_live) {
+                    // its partners' bond lists changed too and get their own records
+                    ensure();
+                    putVarint((id - last_id) << KIND_BITS | REMOVE);
+                    last_id = id;
+                    prev_type[id] = GameWorldStore.FREE;
+                    prev_n_bonds[id] = 0;
+                }
+                continue;
+            }
+            final boolean bonds_changed = (n_bonds[id] | prev_n_bonds[id]) != 0 && bondsChanged(world, id);
+            if (was_live && types[id] == prev_type[id] && xs[id] == prev_x[id] && ys[id] == prev_y[id]
+                    && states[id] == prev_state[id]) {
+                if (bonds_changed) {
+                    putBonds(world, id, id - last_id);
+                    last_id = id;
+                }
+                continue;
+            }
+            ensure();
+            final int gap = (id - last_id) << KIND_BITS;
+            last_id = id;
+            final int dx = xs[id] - prev_x[id];
+            final int dy = ys[id] - prev_y[id];
+            if (!was_live || types[id] != prev_type[id] || dx < -1 || dx > 1 || dy < -1 || dy > 1) {
+                putVarint(gap | FULL);
+                putVarint(xs[id]);
+                putVarint(ys[id]);
+                batch.put(types[id]);
+                batch.put(states[id]);
+            } else if (states[id] == prev_state[id]) {
+                putVarint(gap | MOVE);
+                batch.put((byte) ((dx + 1) * 3 + dy + 1));
+            } else if (dx == 0 && dy == 0) {
+                putVarint(gap | STATE);
+                batch.put(states[id]);
+            } else {
+                putVarint(gap | MOVE_STATE);
+                batch.put((byte) ((dx + 1) * 3 + dy + 1));
+                batch.put(states[id]);
+            }
+            prev_type[id] = types[id];
+            prev_x[id] = xs[id];
+            prev_y[id] = ys[id];
+            prev_state[id] = states[id];
+            if (bonds_changed) {
+                putBonds(world, id, 0);
+            }
+        }
+        prev_n = n;
+
+        final long tick = grid.getCount();
+        ensure();
+        putVarint(0);
+        final GameRandom random = grid.getRandom();
+        if (random instanceof XoroshiroRandom) {
+            batch.put((byte) WorldFile.RANDOM_XOROSHIRO);
+            batch.putLong(tick);
+            batch.putLong(((XoroshiroRandom) random).getState0());
+            batch.putLong(((XoroshiroRandom) random).getState1());
+        } else {
+            batch.put((byte) WorldFile.RANDOM_NONE);
+            batch.putLong(tick);
+            batch.putLong(0);
+            batch.putLong(0);
+        }
+
+        if (tick % snapshot_every == 0) {
+            flush();
+            snapshot(tick);
+        } else if (System.nanoTime() - last_flush > FLUSH_NANOS) {
+            flush();
+        }
+    }
+
+    /**
+     * true if the entity's bond list differs from the last tick's, slot order
+     * included
+     */
+    private boolean bondsChanged(final GameWorldStore world, final int id) {
+        final int count = world.n_bonds[id];
+        if (count != prev_n_bonds[id]) {
+            return true;
+        }
+        final int base = id * GameWorldStore.MAX_BONDS;
+        for (int k = base; k < base + count; k++) {
+            if (world.bonds[k] != prev_bonds[k]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * write a BONDS record and remember the list
+     */
+    private void putBonds(final GameWorldStore world, final int id, final int gap) {
+        ensure();
+        final int count = world.n_bonds[id];
+        final int base = id * GameWorldStore.MAX_BONDS;
+        putVarint(gap << KIND_BITS | BONDS);
+        batch.put((byte) count);
+        for (int k = base; k < base + count; k++) {
+            putVarint(world.bonds[k]);
+            prev_bonds[k] = world.bonds[k];
+        }
+        prev_n_bonds[id] = (byte) count;
+    }
+
+    private void putVarint(int v) {
+        while ((v & ~0x7F) != 0) {
+            batch.put((byte) (v | 0x80));
+            v >>>= 7;
+        }
+        batch.put((byte) v);
+    }
+
+    /**
+     * Save the world as it is at the end of the tick, in the background, and
+     * once it is on disk note where the journal was at that point. A skipped
+     * snapshot only means a replay starts from an earlier one.
+     */
+    private void snapshot(final long tick) {
+        final long at = offset;
+        saver.save(grid, new File(dir, "snapshot-" + tick + ".mzw"), () -> {
+            final ByteBuffer entry = ByteBuffer.allocate(16).order(ORDER);
+            entry.putLong(tick);
+            entry.putLong(at);
+            entry.flip();
+            try {
+                while (entry.hasRemaining()) {
+                    index.write(entry);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * make room for one more record
+     */
+    private void ensure() {
+        if (batch.remaining() < MAX_RECORD) {
+            flush();
+        }
+    }
+
+    /**
+     * hand the current batch to the writer and take an empty one
+     */
+    private void flush() {
+        last_flush = System.nanoTime();
+        if (batch.position() == 0) {
+            return;
+        }
+        offset += batch.position();
+        batch.flip();
+        try {
+            full.put(batch);
+            batch = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error("Journal interrupted");
+        }
+    }
+
+    /**
+     * writer thread, empties batches into the journal in order
+     */
+    private void write() {
+        try {
+            while (true) {
+                final ByteBuffer buffer = full.take();
+                if (buffer == CLOSE) {
+                    return;
+                }
+                if (write_error == null) {
+                    try {
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    } catch (IOException e) {
+                        LOGGER.error("Journal write failed", e);
+                        write_error = e.getMessage();
+                    }
+                }
+                buffer.clear();
+                free.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write out everything queued and close the journal. Call it from the
+     * simulation thread or once the simulation has stopped.
+     */
+    public void close() throws IOException {
+        flush();
+        saver.close();
+        try {
+            full.put(CLOSE);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.force(false);
+            index.force(false);
+        } finally {
+            channel.close();
+            index.close();
+        }
+        if (write_error != null) {
+            throw new IOException("Journal write failed : " + write_error);
+        }
+    }
+
+} // End of the class //
\ No newline at end of file
@@ -0,0 +1,398 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Running statistics of a world, kept up to date by the time step itself
+ * instead of by scanning the entities after each tick: population by type
+ * and state, mean squared displacement, mobility (the share of entities
+ * that moved) and clustering (the mean number of occupied squares around
+ * an entity).
+ *
+ * The tick hands each stripe a Tally. Reactions count their changes of state
+ * in it and the stripe adds up the change of squared displacement of its
+ * moves, and the tallies are summed once the tick is over. Entities added,
+ * removed or placed between ticks bump the world's edit count and the totals
+ * are counted again from scratch before the next tick. Clustering is
+ * measured after each tick over a fixed reservoir sample of the entities,
+ * which costs far less than reading the neighbours of every move.
+ *
+ * Memory does not grow with the length of the run: two ints per entity id
+ * for the displacement, the reservoir, and fixed-size histograms for the
+ * run-wide quantiles of the per-tick figures. As an observer it writes one
+ * CSV line every few ticks, with the figures averaged over those ticks.
+ */
+public class TickStatistics implements SimulationObserver {
+
+    private static final Logger LOGGER = Logger.getLogger(TickStatistics.class);
+
+    static final int STATES = 256;
+
+    /**
+     * entities sampled for the displacement quantiles
+     */
+    private static final int SAMPLE = 1024;
+
+    private static final String CSV_HEADER = "tick,entities,moves_per_tick,reactions_per_tick,mobility,clustering,"
+            + "msd,rms_displacement,displacement_p50,displacement_p90,displacement_p99,mobility_p50,mobility_p99";
+
+    /**
+     * one stripe's changes during a tick, written by the thread running the
+     * stripe only
+     */
+    static class Tally {
+
+        /**
+         * change of count per type * MAX_STATES + state
+         */
+        final int census[] = new int[EntityBase.MAX_TYPES * EntityBase.MAX_STATES];
+        long square_sum = 0;
+
+    } // End of the class //
+
+    private final GameGraphicsGrid grid;
+    private final GameWorldStore world;
+
+    /**
+     * the world's edit count when the totals were last counted, -1 before
+     * the first count
+     */
+    private long edits_seen = -1;
+
+    /**
+     * entities per type * STATES + state, and the sum over entities of
+     * their squared displacement
+     */
+    private final long census[] = new long[EntityBase.MAX_TYPES * STATES];
+    private long square_sum = 0;
+
+    /**
+     * displacement of each entity since it was first counted, unwrapped on
+     * a torus, and which ids were live at the last count
+     */
+    private int dx[] = new int[0];
+    private int dy[] = new int[0];
+    private long known[] = new long[0];
+
+    private Tally tallies[] = new Tally[0];
+
+    /**
+     * ids picked uniformly from the live entities at the last count
+     */
+    private final int sample[] = new int[SAMPLE];
+    private final double sample_distance[] = new double[SAMPLE];
+    private int n_sample = 0;
+    private final XoroshiroRandom sample_random = new XoroshiroRandom(1);
+
+    /**
+     * run-wide histograms of moves per tick and of mobility in parts per
+     * 10000
+     */
+    private final LatencyHistogram tick_moves = new LatencyHistogram();
+    private final LatencyHistogram tick_mobility = new LatencyHistogram();
+
+    /**
+     * sums over the ticks since the last line
+     */
+    private long window_ticks = 0;
+    private long window_moves = 0;
+    private long window_reactions = 0;
+    private double window_mobility = 0;
+    private double window_clustering = 0;
+
+    private int every = 100;
+    private Writer out = null;
+
+    /**
+     * figures of the last tick
+     */
+    private volatile int entities = 0;
+    private volatile double mobility = 0;
+    private volatile double clustering = 0;
+    private volatile double msd = 0;
+
+    public TickStatistics(final GameGraphicsGrid grid) {
+        this.grid = grid;
+        this.world = grid.getWorld();
+    }
+
+    /**
+     * Write a line to the file every n ticks, replacing the file.
+     */
+    public void startDump(final File file, int every) throws IOException {
+        if (every <= 0)
+            throw new Error("TickStatistics : bad interval " + every);
+        this.every = every;
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        out.write(CSV_HEADER);
+        for (int t = 0; t < EntityBase.MAX_TYPES; t++) {
+            out.write("," + EntityBase.getStringType(t));
+        }
+        out.write('\n');
+        out.flush();
+    }
+
+    /**
+     * Count everything again from the world. Entities seen before keep
+     * their displacement, new ones start from zero.
+     */
+    public void recount() {
+        final int n = world.getIdLimit();
+        if (dx.length < world.type.length) {
+            dx = Arrays.copyOf(dx, world.type.length);
+            dy = Arrays.copyOf(dy, world.type.length);
+            known = Arrays.copyOf(known, (world.type.length >> 6) + 1);
+        }
+        Arrays.fill(census, 0);
+        square_sum = 0;
+        n_sample = 0;
+        int seen = 0;
+        for (int id = 0; id < n; id++) {
+            if (world.type[id] == GameWorldStore.FREE) {
+                known[id >> 6] &= ~(1L << id);
+                continue;
+            }
+            if ((known[id >> 6] & (1L << id)) == 0) {
+                known[id >> 6] |= 1L << id;
+                dx[id] = 0;
+                dy[id] = 0;
+            }
+            census[world.type[id] * STATES + (world.state[id] & 0xFF)]++;
+            square_sum += (long) dx[id] * dx[id] + (long) dy[id] * dy[id];
+            // reservoir sampling, every live id equally likely to be kept
+            if (n_sample < SAMPLE) {
+                sample[n_sample++] = id;
+            } else {
+                final int k = sample_random.nextInt(seen + 1);
+                if (k < SAMPLE) {
+                    sample[k] = id;
+                }
+            }
+            seen++;
+        }
+        // ids past the limit are forgotten
+        known[n >> 6] &= (1L << n) - 1;
+        Arrays.fill(known, (n >> 6) + 1, known.length, 0);
+        edits_seen = world.edits;
+    }
+
+    /**
+     * called by the grid before a tick run in the given number of stripes
+     */
+    void beginTick(int stripes) {
+        if (world.edits != edits_seen || dx.length < world.type.length) {
+            recount();
+        }
+        if (tallies.length < stripes) {
+            final int old = tallies.length;
+            tallies = Arrays.copyOf(tallies, stripes);
+            for (int s = old; s < stripes; s++) {
+                tallies[s] = new Tally();
+            }
+        }
+    }
+
+    Tally tally(int stripe) {
+        return tallies[stripe];
+    }
+
+    /**
+     * An entity moved from (from_x, from_y) to its current square, returns
+     * the change in its squared displacement for the stripe to add to its
+     * tally.
+     */
+    long moved(int id, int from_x, int from_y) {
+        final int ex = world.deltaX(world.x[id] - from_x);
+        final int ey = world.deltaY(world.y[id] - from_y);
+        final int old_x = dx[id];
+        final int old_y = dy[id];
+        dx[id] = old_x + ex;
+        dy[id] = old_y + ey;
+        return 2L * (old_x * ex + old_y * ey) + ex * ex + ey * ey;
+    }
+
+    /**
+     * called by the grid once every stripe of the tick is done
+     */
+    void endTick(int stripes) {
+        for (int s = 0; s < stripes; s++) {
+            final Tally tally = tallies[s];
+            square_sum += tally.square_sum;
+            tally.square_sum = 0;
+            final int delta[] = tally.census;
+            for (int i = 0; i < delta.length; i++) {
+                if (delta[i] != 0) {
+                    census[(i / EntityBase.MAX_STATES) * STATES + i % EntityBase.MAX_STATES] += delta[i];
+                    delta[i] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * runs on the simulation thread after every tick
+     */
+    public void tickCompleted(final SimulationEngine engine, final int moved) {
+        final int n = world.size();
+        entities = n;
+        mobility = n == 0 ? 0 : moved / (double) n;
+        clustering = sampleClustering();
+        msd = n == 0 ? 0 : square_sum / (double) n;
+        tick_moves.record(moved);
+        tick_mobility.record(Math.round(mobility * 10000));
+        window_ticks++;
+        window_moves += moved;
+        window_reactions += engine.getLastReactions();
+        window_mobility += mobility;
+        window_clustering += clustering;
+        if (window_ticks >= every) {
+            if (out != null) {
+                writeLine();
+            }
+            window_ticks = 0;
+            window_moves = 0;
+            window_reactions = 0;
+            window_mobility = 0;
+            window_clustering = 0;
+        }
+    }
+
+    /**
+     * mean number of occupied squares around the sampled entities
+     */
+    private double sampleClustering() {
+        long contacts = 0;
+        int n = 0;
+        for (int i = 0; i < n_sample; i++) {
+            final int id = sample[i];
+            if (world.type[id] != GameWorldStore.FREE) {
+                contacts += Entity.neighbours(world, world.x[id], world.y[id]);
+                n++;
+            }
+        }
+        return n == 0 ? 0 : contacts / (double) n;
+    }
+
+    private void writeLine() {
+        int n = 0;
+        for (int i = 0; i < n_sample; i++) {
+            final int id = sample[i];
+            if (world.isLive(id)) {
+                sample_distance[n++] = Math.sqrt((double) dx[id] * dx[id] + (double) dy[id] * dy[id]);
+            }
+        }
+        Arrays.sort(sample_distance, 0, n);
+        final StringBuilder line = new StringBuilder();
+        line.append(grid.getCount()).append(',').append(entities);
+        final double values[] = {
+                window_moves / (double) window_ticks, window_reactions / (double) window_ticks,
+                window_mobility / window_ticks, window_clustering / window_ticks, msd, Math.sqrt(msd),
+                quantile(sample_distance, n, 0.5), quantile(sample_distance, n, 0.9),
+                quantile(sample_distance, n, 0.99), tick_mobility.getValueAtPercentile(50) / 10000.0,
+                tick_mobility.getValueAtPercentile(99) / 10000.0 };
+        for (final double value : values) {
+            line.append(',').append(String.format(Locale.ROOT, "%.4f", value));
+        }
+        for (int t = 0; t < EntityBase.MAX_TYPES; t++) {
+            line.append(',').append(getTypeCount(t));
+        }
+        try {
+            out.write(line.append('\n').toString());
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.error("Statistics dump failed, stopping it", e);
+            close();
+        }
+    }
+
+    private static double quantile(final double sorted[], int n, double q) {
+        return n == 0 ? 0 : sorted[Math.min(n - 1, (int) (q * n))];
+    }
+
+    public void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.error("Closing the statistics dump failed", e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * one line for the log
+     */
+    public String summary() {
+        return String.format(Locale.ROOT, "entities=%d mobility=%.4f clustering=%.3f msd=%.2f moves/tick p50=%d"
+                + " p99=%d", entities, mobility, clustering, msd, tick_moves.getValueAtPercentile(50),
+                tick_moves.getValueAtPercentile(99));
+    }
+
+    // ----------------------------------------------------------
+
+    /**
+     * entities of a type and state as of the last tick, read on the
+     * simulation thread
+     */
+    public long getCount(int type, int state) {
+        return census[type * STATES + (state & 0xFF)];
+    }
+
+    public long getTypeCount(int type) {
+        long n = 0;
+        for (int s = 0; s < STATES; s++) {
+            n += census[type * STATES + s];
+        }
+        return n;
+    }
+
+    public int getEntities() {
+        return entities;
+    }
+
+    public double getMobility() {
+        return mobility;
+    }
+
+    public double getClustering() {
+        return clustering;
+    }
+
+    public double getMeanSquaredDisplacement() {
+        return msd;
+    }
+
+} // End of the class //
\ No newline at end of file
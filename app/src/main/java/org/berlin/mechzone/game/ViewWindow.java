@@ -0,0 +1,204 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.util.Arrays;
+
+/**
+ * The part of the world a Viewport shows, one cell per square or per block
+ * of squares, copied on the simulation thread so the renderer never touches
+ * the live world. Filling it costs about one read per cell shown rather
+ * than one per entity, however big the world is.
+ *
+ * At level 0 a cell is a square: its entity's type + 1, state and bond
+ * directions packed as (type + 1) | state << 8 | bonds << 16, or 0 if empty.
+ * At higher levels a cell is a block of 1 << level squares a side holding
+ * its dominant type + 1 and how full it is out of 255, packed as
+ * (type + 1) | density << 8, or 0 if empty. Blocks of up to 4 squares read
+ * the squares, up to a chunk sum the world's per-block type counts, which
+ * it starts keeping the first time they are needed, and bigger ones its
+ * per-chunk counts. Cells past the edge of a bounded world
+ * are OUTSIDE.
+ */
+final class ViewWindow {
+
+    static final int OUTSIDE = -1;
+
+    Viewport view;
+    int level;
+
+    /**
+     * block coordinates of the first cell, unwrapped, so the cell at column
+     * c starts at world square (col0 + c) << level
+     */
+    int col0, row0;
+    int cols, rows;
+
+    /**
+     * packed cells row by row, cells[r * cols + c]
+     */
+    int cells[] = new int[0];
+
+    private final int counts[] = new int[EntityBase.MAX_TYPES];
+
+    /**
+     * Copy the cells the view shows. Must run on the thread that steps the
+     * world, between ticks.
+     */
+    void fill(final GameWorldStore world, final Viewport view) {
+        this.view = view;
+        level = view.level();
+        final double span = 1 << level;
+        col0 = (int) Math.floor(view.origin_x / span);
+        row0 = (int) Math.floor(view.origin_y / span);
+        cols = (int) Math.floor((view.origin_x + view.width / (double) view.zoom) / span) - col0 + 1;
+        rows = (int) Math.floor((view.origin_y + view.height / (double) view.zoom) / span) - row0 + 1;
+        if (cells.length < cols * rows) {
+            cells = new int[cols * rows];
+        }
+        if (level >= GameWorldStore.BLOCK_SHIFT && level < GameWorldStore.CHUNK_SHIFT) {
+            world.trackBlocks();
+        }
+        for (int r = 0; r < rows; r++) {
+            int sy = (row0 + r) << level;
+            if (world.wrap) {
+                sy = Math.floorMod(sy, world.n_y);
+            }
+            for (int c = 0; c < cols; c++) {
+                int sx = (col0 + c) << level;
+                if (world.wrap) {
+                    sx = Math.floorMod(sx, world.n_x);
+                }
+                final int i = r * cols + c;
+                if (sx < 0 || sx >= world.n_x || sy < 0 || sy >= world.n_y) {
+                    cells[i] = OUTSIDE;
+                } else if (level == 0) {
+                    cells[i] = square(world, sx, sy);
+                } else {
+                    cells[i] = block(world, sx, sy);
+                }
+            }
+        }
+    }
+
+    private static int square(final GameWorldStore world, int px, int py) {
+        final int id = world.occupantAt(px, py);
+        if (id == GameWorldStore.EMPTY) {
+            return 0;
+        }
+        final int bonds = world.n_bonds[id] == 0 ? 0 : Entity.bondDirections(world, id);
+        return (world.type[id] + 1) | world.state[id] << 8 | bonds << 16;
+    }
+
+    /**
+     * dominant type and density of the block of squares starting at
+     * (sx, sy), clipped to the world
+     */
+    private int block(final GameWorldStore world, int sx, int sy) {
+        final int ex = Math.min(sx + (1 << level), world.n_x);
+        final int ey = Math.min(sy + (1 << level), world.n_y);
+        final int counts[] = this.counts;
+        Arrays.fill(counts, 0);
+        if (level < GameWorldStore.BLOCK_SHIFT) {
+            // a small block is inside one chunk, visit only its occupied squares
+            final int c = (sx >> GameWorldStore.CHUNK_SHIFT) * world.n_cy + (sy >> GameWorldStore.CHUNK_SHIFT);
+            final int chunk[] = world.chunks[c];
+            if (chunk == null) {
+                return 0;
+            }
+            final long bits[] = world.chunk_bits[c];
+            final int ly = sy & GameWorldStore.CHUNK_MASK;
+            final long rows = (1L << (ey - sy)) - 1;
+            for (int px = sx; px < ex; px++) {
+                final int lx = px & GameWorldStore.CHUNK_MASK;
+                for (long b = (bits[lx] >>> ly) & rows; b != 0; b &= b - 1) {
+                    final int id = chunk[(lx << GameWorldStore.CHUNK_SHIFT) | (ly + Long.numberOfTrailingZeros(b))];
+                    counts[world.type[id]]++;
+                }
+            }
+        } else if (level < GameWorldStore.CHUNK_SHIFT) {
+            final byte blocks[] = world.chunk_blocks[(sx >> GameWorldStore.CHUNK_SHIFT) * world.n_cy
+                    + (sy >> GameWorldStore.CHUNK_SHIFT)];
+            if (blocks == null) {
+                return 0;
+            }
+            final int step = 1 << GameWorldStore.BLOCK_SHIFT;
+            for (int bx = sx; bx < ex; bx += step) {
+                for (int by = sy; by < ey; by += step) {
+                    final int slot = GameWorldStore.blockSlot(bx, by);
+                    for (int t = 0; t < counts.length; t++) {
+                        counts[t] += blocks[slot + t];
+                    }
+                }
+            }
+        } else {
+            final int step = GameWorldStore.CHUNK_SIZE;
+            for (int bx = sx; bx < ex; bx += step) {
+                for (int by = sy; by < ey; by += step) {
+                    final int c = (bx >> GameWorldStore.CHUNK_SHIFT) * world.n_cy + (by >> GameWorldStore.CHUNK_SHIFT);
+                    if (world.chunk_count[c] == 0) {
+                        continue;
+                    }
+                    int k = c * GameWorldStore.KINDS;
+                    for (int t = 0; t < counts.length; t++) {
+                        for (int s = 0; s < EntityBase.MAX_STATES; s++) {
+                            counts[t] += world.chunk_kinds[k++];
+                        }
+                    }
+                }
+            }
+        }
+        int total = 0;
+        int dominant = 0;
+        for (int t = 0; t < counts.length; t++) {
+            total += counts[t];
+            if (counts[t] > counts[dominant]) {
+                dominant = t;
+            }
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long area = (long) (ex - sx) * (ey - sy);
+        final int density = (int) Math.max(1, total * 255L / area);
+        return (dominant + 1) | density << 8;
+    }
+
+    /**
+     * the packed cell covering world square (px, py), OUTSIDE if the window
+     * doesn't show it
+     */
+    int cellAt(int px, int py) {
+        int c = (px >> level) - col0;
+        int r = (py >> level) - row0;
+        if (view.wrap) {
+            // the window may start on the far side of the seam
+            final int wrap_x = view.n_x >> level;
+            final int wrap_y = view.n_y >> level;
+            c = wrap_x == 0 ? c : Math.floorMod(c, wrap_x);
+            r = wrap_y == 0 ? r : Math.floorMod(r, wrap_y);
+        }
+        return c < 0 || c >= cols || r < 0 || r >= rows ? OUTSIDE : cells[r * cols + c];
+    }
+
+} // End of the class //
\ No newline at end of file
@@ -0,0 +1,176 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+/**
+ * Which part of the world a view shows and how big: the world coordinates
+ * at the top left pixel and the zoom in pixels per square. Immutable, so a
+ * UI thread can swap in a new one while the simulation thread reads the old.
+ *
+ * A bounded world keeps the middle of the view on the world; on a torus the
+ * view pans around forever. The zoom is kept between a quarter of the zoom
+ * that fits the whole world and MAX_ZOOM.
+ */
+public final class Viewport {
+
+    /**
+     * pixels per square at the closest zoom
+     */
+    public static final float MAX_ZOOM = 64.0f;
+
+    final int n_x, n_y;
+    final boolean wrap;
+
+    /**
+     * size of the view in pixels
+     */
+    final int width, height;
+
+    /**
+     * world coordinates of the top left pixel, pixels per square
+     */
+    final double origin_x, origin_y;
+    final float zoom;
+
+    private Viewport(int n_x, int n_y, boolean wrap, int width, int height, double origin_x, double origin_y,
+                     float zoom) {
+        this.n_x = n_x;
+        this.n_y = n_y;
+        this.wrap = wrap;
+        this.width = width;
+        this.height = height;
+        this.zoom = Math.max(fitZoom(n_x, n_y, width, height) / 4, Math.min(MAX_ZOOM, zoom));
+        final double span_x = width / (double) this.zoom;
+        final double span_y = height / (double) this.zoom;
+        if (wrap) {
+            this.origin_x = floorMod(origin_x, n_x);
+            this.origin_y = floorMod(origin_y, n_y);
+        } else {
+            this.origin_x = Math.max(-span_x / 2, Math.min(n_x - span_x / 2, origin_x));
+            this.origin_y = Math.max(-span_y / 2, Math.min(n_y - span_y / 2, origin_y));
+        }
+    }
+
+    /**
+     * the whole world, scaled to fit a view of the given size in pixels
+     */
+    public static Viewport fit(int n_x, int n_y, boolean wrap, int width, int height) {
+        if (n_x <= 0 || n_y <= 0 || width <= 0 || height <= 0)
+            throw new Error("Viewport : sizes must be positive");
+        return new Viewport(n_x, n_y, wrap, width, height, 0, 0, fitZoom(n_x, n_y, width, height));
+    }
+
+    /**
+     * the whole world of a store, scaled to fit a view of the given size
+     */
+    public static Viewport fit(final GameWorldStore world, int width, int height) {
+        return fit(world.n_x, world.n_y, world.wrap, width, height);
+    }
+
+    private static float fitZoom(int n_x, int n_y, int width, int height) {
+        return Math.min(width / (float) n_x, height / (float) n_y);
+    }
+
+    private static double floorMod(double v, int n) {
+        final double m = v % n;
+        return m < 0 ? m + n : m;
+    }
+
+    /**
+     * the same view moved by a number of pixels
+     */
+    public Viewport pan(int dx, int dy) {
+        return new Viewport(n_x, n_y, wrap, width, height, origin_x + dx / (double) zoom,
+                origin_y + dy / (double) zoom, zoom);
+    }
+
+    /**
+     * the view zoomed in (factor above 1) or out, keeping the square under
+     * pixel (px, py) where it is
+     */
+    public Viewport zoomAt(int px, int py, float factor) {
+        final float z = Math.max(fitZoom(n_x, n_y, width, height) / 4, Math.min(MAX_ZOOM, zoom * factor));
+        return new Viewport(n_x, n_y, wrap, width, height, origin_x + px / (double) zoom - px / (double) z,
+                origin_y + py / (double) zoom - py / (double) z, z);
+    }
+
+    /**
+     * true if this shows the whole world at the zoom that fits it, as fit
+     * would
+     */
+    public boolean isWhole() {
+        return origin_x == 0 && origin_y == 0 && zoom == fitZoom(n_x, n_y, width, height);
+    }
+
+    /**
+     * world column of a pixel, wrapped on a torus and possibly outside a
+     * bounded world
+     */
+    public int toWorldX(int px) {
+        final int wx = (int) Math.floor(origin_x + px / (double) zoom);
+        return wrap ? (int) floorMod(wx, n_x) : wx;
+    }
+
+    public int toWorldY(int py) {
+        final int wy = (int) Math.floor(origin_y + py / (double) zoom);
+        return wrap ? (int) floorMod(wy, n_y) : wy;
+    }
+
+    /**
+     * Squares per side of a block drawn as one cell are 1 << level. At a
+     * zoom of one pixel per square or more every square is drawn, below it
+     * the smallest block that covers at least a pixel.
+     */
+    public int level() {
+        int level = 0;
+        while (level < 30 && (1 << level) * zoom < 1.0f) {
+            level++;
+        }
+        return level;
+    }
+
+    public float getZoom() {
+        return zoom;
+    }
+
+    public double getOriginX() {
+        return origin_x;
+    }
+
+    public double getOriginY() {
+        return origin_y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String toString() {
+        return String.format("%.1f,%.1f x%.3f", origin_x, origin_y, zoom);
+    }
+
+} // End of the class //
\ No newline at end of file
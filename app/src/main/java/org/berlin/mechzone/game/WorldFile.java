@@ -0,0 +1,290 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Binary world file. Holds the grid size, the tick count, the generator
+ * state and the packed per-entity arrays of a GameWorldStore, written and
+ * read through memory-mapped windows of the file so that a large world
+ * moves in bulk array copies, with no per-entity objects.
+ *
+ * Layout, little endian:
+ *
+ * <pre>
+ *  0  int   MAGIC
+ *  4  int   VERSION
+ *  8  int   n_x
+ * 12  int   n_y
+ * 16  long  tick
+ * 24  int   generator kind, RANDOM_NONE or RANDOM_XOROSHIRO
+ * 28  long  generator state 0
+ * 36  long  generator state 1
+ * 44  int   n, the id limit, entities and free ids
+ * 48  long  m, the number of bond slots in use, the total of n_bonds
+ * 56  int   flags, FLAG_WRAP for a torus
+ * 64  byte  type[n], byte state[n], byte n_bonds[n], padded to 4 bytes
+ *     int   x[n], y[n], last_x[n], last_y[n], time_since_last_reaction[n]
+ *     int   bonds[m], the n_bonds[id] partners of each id in turn
+ * </pre>
+ *
+ * A free id has type -1 (GameWorldStore.FREE) and no bonds, its other
+ * fields are ignored.
+ *
+ * Version 1 files have no bonds, no m and no n_bonds, version 1 and 2
+ * files have no flags, and both still load.
+ */
+public class WorldFile {
+
+    public static final int MAGIC = 0x4D5A5744; // "MZWD"
+    public static final int VERSION = 3;
+
+    static final int RANDOM_NONE = 0;
+    static final int RANDOM_XOROSHIRO = 1;
+
+    /**
+     * header flag of a world that wraps around into a torus
+     */
+    static final int FLAG_WRAP = 1;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /**
+     * largest region mapped at once, a single mapping is limited to 2GB
+     */
+    private static final int WINDOW = 1 << 30;
+
+    private WorldFile() {
+    }
+
+    /**
+     * bytes taken by a world of n entities holding m bond slots
+     */
+    public static long fileSize(int n, long m) {
+        return HEADER_SIZE + pad4(3L * n) + 5L * 4 * n + 4L * m;
+    }
+
+    private static long fileSizeV1(int n) {
+        return HEADER_SIZE + pad4(2L * n) + 5L * 4 * n;
+    }
+
+    /**
+     * Write the grid's world, tick and generator state, replacing the file.
+     * The world must not be stepped while it is being written.
+     */
+    public static void save(final GameGraphicsGrid grid, final File file) throws IOException {
+        save(WorldImage.of(grid), file);
+    }
+
+    /**
+     * write an image of a world, replacing the file
+     */
+    static void save(final WorldImage image, final File file) throws IOException {
+        final int n = image.n;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(fileSize(n, image.n_bond_slots));
+
+            final MappedByteBuffer header = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ORDER);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(image.n_x);
+            header.putInt(image.n_y);
+            header.putLong(image.tick);
+            header.putInt(image.random_kind);
+            header.putLong(image.state0);
+            header.putLong(image.state1);
+            header.putInt(n);
+            header.putLong(image.n_bond_slots);
+            header.putInt(image.wrap ? FLAG_WRAP : 0);
+            header.force();
+
+            long pos = HEADER_SIZE;
+            pos = putBytes(channel, pos, image.type, n);
+            pos = putBytes(channel, pos, image.state, n);
+            pos = putBytes(channel, pos, image.n_bonds, n);
+            pos = pad4(pos);
+            pos = putInts(channel, pos, image.x, n);
+            pos = putInts(channel, pos, image.y, n);
+            pos = putInts(channel, pos, image.last_x, n);
+            pos = putInts(channel, pos, image.last_y, n);
+            pos = putInts(channel, pos, image.time_since_last_reaction, n);
+            putInts(channel, pos, image.bond_list, image.n_bond_slots);
+        }
+    }
+
+    /**
+     * Read a world written by save. The grid resumes at the saved tick with
+     * the saved generator state, or a fresh generator if none was saved.
+     */
+    public static GameGraphicsGrid load(final File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a world file : " + file);
+            }
+            final MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+            header.order(ORDER);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a world file : " + file);
+            }
+            final int version = header.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported world file version " + version + " : " + file);
+            }
+            final int n_x = header.getInt();
+            final int n_y = header.getInt();
+            final long tick = header.getLong();
+            final int random_kind = header.getInt();
+            final long state0 = header.getLong();
+            final long state1 = header.getLong();
+            final int n = header.getInt();
+            final long m = version == 1 ? 0 : header.getLong();
+            final int flags = version < 3 ? 0 : header.getInt();
+            if (n_x <= 0 || n_y <= 0 || n < 0 || tick < 0 || tick > Integer.MAX_VALUE
+                    || m < 0 || m > (long) n * GameWorldStore.MAX_BONDS
+                    || channel.size() < (version == 1 ? fileSizeV1(n) : fileSize(n, m))) {
+                throw new IOException("Corrupt world file header : " + file);
+            }
+
+            final GameWorldStore world;
+            try {
+                world = new GameWorldStore(n_x, n_y, n, (flags & FLAG_WRAP) != 0);
+            } catch (Error e) {
+                throw new IOException("Corrupt world file header : " + e.getMessage(), e);
+            }
+            long pos = HEADER_SIZE;
+            pos = getBytes(channel, pos, world.type, n);
+            pos = getBytes(channel, pos, world.state, n);
+            if (version != 1) {
+                pos = getBytes(channel, pos, world.n_bonds, n);
+            }
+            pos = pad4(pos);
+            pos = getInts(channel, pos, world.x, n);
+            pos = getInts(channel, pos, world.y, n);
+            pos = getInts(channel, pos, world.last_x, n);
+            pos = getInts(channel, pos, world.last_y, n);
+            pos = getInts(channel, pos, world.time_since_last_reaction, n);
+            if (m > 0) {
+                final int bond_list[] = new int[(int) m];
+                getInts(channel, pos, bond_list, (int) m);
+                unpackBonds(world, n, bond_list, file);
+            }
+            try {
+                world.restore(n);
+            } catch (Error e) {
+                throw new IOException("Corrupt world file : " + e.getMessage(), e);
+            }
+
+            final GameRandom random;
+            if (random_kind == RANDOM_XOROSHIRO) {
+                final XoroshiroRandom xoroshiro = new XoroshiroRandom(0);
+                xoroshiro.setState(state0, state1);
+                random = xoroshiro;
+            } else {
+                random = new XoroshiroRandom(System.nanoTime());
+            }
+            return new GameGraphicsGrid(world, (int) tick, random);
+        }
+    }
+
+    /**
+     * spread the packed partner lists into the world's fixed bond slots
+     */
+    private static void unpackBonds(final GameWorldStore world, final int n, final int bond_list[], final File file)
+            throws IOException {
+        int at = 0;
+        for (int id = 0; id < n; id++) {
+            final int count = world.n_bonds[id];
+            if (count < 0 || count > GameWorldStore.MAX_BONDS || at + count > bond_list.length) {
+                throw new IOException("Corrupt world file bonds : " + file);
+            }
+            System.arraycopy(bond_list, at, world.bonds, id * GameWorldStore.MAX_BONDS, count);
+            at += count;
+        }
+        if (at != bond_list.length) {
+            throw new IOException("Corrupt world file bonds : " + file);
+        }
+    }
+
+    private static long pad4(long pos) {
+        return (pos + 3) & ~3L;
+    }
+
+    private static long putBytes(FileChannel channel, long pos, byte a[], int n) throws IOException {
+        for (int done = 0; done < n;) {
+            final int len = Math.min(n - done, WINDOW);
+            final MappedByteBuffer buf = channel.map(MapMode.READ_WRITE, pos, len);
+            buf.put(a, done, len);
+            buf.force();
+            done += len;
+            pos += len;
+        }
+        return pos;
+    }
+
+    private static long putInts(FileChannel channel, long pos, int a[], int n) throws IOException {
+        for (int done = 0; done < n;) {
+            final int len = Math.min(n - done, WINDOW / 4);
+            final MappedByteBuffer buf = channel.map(MapMode.READ_WRITE, pos, 4L * len);
+            buf.order(ORDER);
+            buf.asIntBuffer().put(a, done, len);
+            buf.force();
+            done += len;
+            pos += 4L * len;
+        }
+        return pos;
+    }
+
+    private static long getBytes(FileChannel channel, long pos, byte a[], int n) throws IOException {
+        for (int done = 0; done < n;) {
+            final int len = Math.min(n - done, WINDOW);
+            final MappedByteBuffer buf = channel.map(MapMode.READ_ONLY, pos, len);
+            buf.get(a, done, len);
+            done += len;
+            pos += len;
+        }
+        return pos;
+    }
+
+    private static long getInts(FileChannel channel, long pos, int a[], int n) throws IOException {
+        for (int done = 0; done < n;) {
+            final int len = Math.min(n - done, WINDOW / 4);
+            final MappedByteBuffer buf = channel.map(MapMode.READ_ONLY, pos, 4L * len);
+            buf.order(ORDER);
+            buf.asIntBuffer().get(a, done, len);
+            done += len;
+            pos += 4L * len;
+        }
+        return pos;
+    }
+
+} // End of the class //
\ No newline at end of file
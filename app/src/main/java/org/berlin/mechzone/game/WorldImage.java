@@ -0,0 +1,146 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+/**
+ * The part of a grid that goes into a world file: size, tick, generator
+ * state, the per-entity arrays and the bonds. Either a view over a grid's
+ * live arrays or a private copy that can be written out while the grid keeps
+ * running.
+ */
+final class WorldImage {
+
+    int n_x, n_y;
+    boolean wrap;
+    long tick;
+    int random_kind;
+    long state0, state1;
+    int n;
+
+    byte type[] = new byte[0];
+    byte state[] = new byte[0];
+    int x[] = new int[0], y[] = new int[0];
+    int last_x[] = new int[0], last_y[] = new int[0];
+    int time_since_last_reaction[] = new int[0];
+
+    /**
+     * bond count per entity and the partners of every entity packed one
+     * after another, n_bond_slots of them
+     */
+    byte n_bonds[] = new byte[0];
+    int bond_list[] = new int[0];
+    int n_bond_slots;
+
+    /**
+     * an image over the grid's own arrays, only valid while the grid is not
+     * stepped
+     */
+    static WorldImage of(final GameGraphicsGrid grid) {
+        final WorldImage image = new WorldImage();
+        final GameWorldStore world = grid.getWorld();
+        image.header(grid);
+        image.type = world.type;
+        image.state = world.state;
+        image.x = world.x;
+        image.y = world.y;
+        image.last_x = world.last_x;
+        image.last_y = world.last_y;
+        image.time_since_last_reaction = world.time_since_last_reaction;
+        image.n_bonds = world.n_bonds;
+        image.packBonds(world);
+        return image;
+    }
+
+    /**
+     * copy the grid into this image, reusing its arrays when they are big
+     * enough
+     */
+    void copyFrom(final GameGraphicsGrid grid) {
+        final GameWorldStore world = grid.getWorld();
+        header(grid);
+        if (type.length < n) {
+            final int cap = world.type.length;
+            type = new byte[cap];
+            state = new byte[cap];
+            x = new int[cap];
+            y = new int[cap];
+            last_x = new int[cap];
+            last_y = new int[cap];
+            time_since_last_reaction = new int[cap];
+            n_bonds = new byte[cap];
+        }
+        System.arraycopy(world.type, 0, type, 0, n);
+        System.arraycopy(world.state, 0, state, 0, n);
+        System.arraycopy(world.x, 0, x, 0, n);
+        System.arraycopy(world.y, 0, y, 0, n);
+        System.arraycopy(world.last_x, 0, last_x, 0, n);
+        System.arraycopy(world.last_y, 0, last_y, 0, n);
+        System.arraycopy(world.time_since_last_reaction, 0, time_since_last_reaction, 0, n);
+        System.arraycopy(world.n_bonds, 0, n_bonds, 0, n);
+        packBonds(world);
+    }
+
+    /**
+     * pack the partners of the first n entities into bond_list, growing it
+     * if needed
+     */
+    private void packBonds(final GameWorldStore world) {
+        final byte counts[] = world.n_bonds;
+        int m = 0;
+        for (int id = 0; id < n; id++) {
+            m += counts[id];
+        }
+        if (bond_list.length < m) {
+            bond_list = new int[m + (m >> 1)];
+        }
+        int at = 0;
+        for (int id = 0; id < n && at < m; id++) {
+            final int count = counts[id];
+            if (count != 0) {
+                System.arraycopy(world.bonds, id * GameWorldStore.MAX_BONDS, bond_list, at, count);
+                at += count;
+            }
+        }
+        n_bond_slots = m;
+    }
+
+    private void header(final GameGraphicsGrid grid) {
+        final GameWorldStore world = grid.getWorld();
+        n_x = world.n_x;
+        n_y = world.n_y;
+        wrap = world.wrap;
+        tick = grid.getCount();
+        n = world.getIdLimit();
+        final GameRandom random = grid.getRandom();
+        if (random instanceof XoroshiroRandom) {
+            random_kind = WorldFile.RANDOM_XOROSHIRO;
+            state0 = ((XoroshiroRandom) random).getState0();
+            state1 = ((XoroshiroRandom) random).getState1();
+        } else {
+            random_kind = WorldFile.RANDOM_NONE;
+            state0 = 0;
+            state1 = 0;
+        }
+    }
+
+} // End of the class //
\ No newline at end of file
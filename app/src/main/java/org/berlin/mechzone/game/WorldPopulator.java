@@ -0,0 +1,280 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fills a world with exact numbers of entities of each type and state in
+ * one pass, with no retries, for large initial conditions.
+ *
+ * The types and states are laid out in the new ids and shuffled, then each
+ * vertical stripe of the world, one chunk column wide, takes a share of the
+ * entities in proportion to its free squares and picks its squares by
+ * selection sampling: every free square is taken with probability
+ * needed / left, so the stripe places exactly its share in a single scan.
+ * Stripes run in parallel on a pool, each from its own generator, so the
+ * world depends only on the generator passed in and not on the pool.
+ *
+ * The entities go in as one restore, under new ids starting at the world's
+ * id limit.
+ */
+public class WorldPopulator {
+
+    private final GameWorldStore world;
+
+    /**
+     * the entities to place, kind_count[k] of kind_type[k] in kind_state[k]
+     */
+    private int n_kinds = 0;
+    private int kind_type[] = new int[8];
+    private int kind_state[] = new int[8];
+    private long kind_count[] = new long[8];
+
+    /**
+     * free squares in each stripe, and the ids each stripe fills,
+     * stripe_start[s] .. stripe_start[s + 1] - 1
+     */
+    private int stripe_free[];
+    private int stripe_start[];
+    private long seed;
+
+    public WorldPopulator(final GameWorldStore world) {
+        this.world = world;
+    }
+
+    /**
+     * place count entities of a type in a state
+     */
+    public WorldPopulator add(int type, int state, long count) {
+        if (type < 0 || type >= EntityBase.MAX_TYPES)
+            throw new Error("WorldPopulator : type not in valid range");
+        if (state < 0 || state >= EntityBase.MAX_STATES)
+            throw new Error("WorldPopulator : state not in valid range");
+        if (count < 0)
+            throw new Error("WorldPopulator : negative count");
+        if (n_kinds == kind_type.length) {
+            kind_type = Arrays.copyOf(kind_type, n_kinds * 2);
+            kind_state = Arrays.copyOf(kind_state, n_kinds * 2);
+            kind_count = Arrays.copyOf(kind_count, n_kinds * 2);
+        }
+        kind_type[n_kinds] = type;
+        kind_state[n_kinds] = state;
+        kind_count[n_kinds] = count;
+        n_kinds++;
+        return this;
+    }
+
+    /**
+     * place entities of a type in a state on the given fraction of all the
+     * squares of the world
+     */
+    public WorldPopulator addDensity(int type, int state, double density) {
+        return add(type, state, Math.round(density * world.n_x * (long) world.n_y));
+    }
+
+    /**
+     * Add entities from a list such as "a0=0.2,b0=0.05,e8=100": a type
+     * letter and a state, then a density if the value has a decimal point
+     * or a count if it has not.
+     */
+    public WorldPopulator add(final String spec) {
+        for (final String part : spec.split(",")) {
+            final int eq = part.indexOf('=');
+            if (eq < 2) {
+                throw new Error("WorldPopulator : bad entry " + part);
+            }
+            final int type = EntityBase.getType(part.charAt(0));
+            final int state = Integer.parseInt(part.substring(1, eq).trim());
+            final String value = part.substring(eq + 1).trim();
+            if (value.indexOf('.') >= 0) {
+                addDensity(type, state, Double.parseDouble(value));
+            } else {
+                add(type, state, Long.parseLong(value));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * number of entities to place
+     */
+    public long getCount() {
+        long total = 0;
+        for (int k = 0; k < n_kinds; k++) {
+            total += kind_count[k];
+        }
+        return total;
+    }
+
+    /**
+     * Place all the entities, on the pool if there is one, and return the
+     * first new id. Throws an Error if there are more entities than free
+     * squares.
+     */
+    public int populate(final GameRandom random, final ForkJoinPool pool) {
+        final int n_cx = world.n_cx;
+        final int n_cy = world.n_cy;
+        stripe_free = new int[n_cx];
+        long all_free = 0;
+        for (int cx = 0; cx < n_cx; cx++) {
+            final int width = Math.min(GameWorldStore.CHUNK_SIZE, world.n_x - (cx << GameWorldStore.CHUNK_SHIFT));
+            stripe_free[cx] = width * world.n_y;
+            for (int cy = 0; cy < n_cy; cy++) {
+                stripe_free[cx] -= world.chunk_count[cx * n_cy + cy];
+            }
+            all_free += stripe_free[cx];
+        }
+        final long total = getCount();
+        if (total > all_free)
+            throw new Error("WorldPopulator : " + total + " entities but only " + all_free + " free squares");
+        if (world.n_ids + total > Integer.MAX_VALUE - 8)
+            throw new Error("WorldPopulator : too many entities");
+        final int first = world.n_ids;
+        final int n = (int) total;
+        world.ensureCapacity(first + n);
+
+        // every kind in turn, then shuffled
+        final byte types[] = world.type;
+        final byte states[] = world.state;
+        int at = first;
+        for (int k = 0; k < n_kinds; k++) {
+            Arrays.fill(types, at, at + (int) kind_count[k], (byte) kind_type[k]);
+            Arrays.fill(states, at, at + (int) kind_count[k], (byte) kind_state[k]);
+            at += (int) kind_count[k];
+        }
+        for (int i = n - 1; i > 0; i--) {
+            final int j = first + random.nextInt(i + 1);
+            final byte t = types[first + i];
+            final byte s = states[first + i];
+            types[first + i] = types[j];
+            states[first + i] = states[j];
+            types[j] = t;
+            states[j] = s;
+        }
+
+        // each stripe's share rounded down, the rest to the largest remainders
+        final long share[] = new long[n_cx];
+        final long remainder[] = new long[n_cx];
+        long left = total;
+        for (int cx = 0; cx < n_cx; cx++) {
+            share[cx] = all_free == 0 ? 0 : total * stripe_free[cx] / all_free;
+            remainder[cx] = all_free == 0 ? 0 : total * stripe_free[cx] % all_free;
+            left -= share[cx];
+        }
+        for (; left > 0; left--) {
+            int best = 0;
+            for (int cx = 1; cx < n_cx; cx++) {
+                if (remainder[cx] > remainder[best]) {
+                    best = cx;
+                }
+            }
+            share[best]++;
+            remainder[best] = -1;
+        }
+        stripe_start = new int[n_cx + 1];
+        stripe_start[0] = first;
+        for (int cx = 0; cx < n_cx; cx++) {
+            stripe_start[cx + 1] = stripe_start[cx] + (int) share[cx];
+        }
+
+        seed = random.nextLong();
+        if (pool == null) {
+            for (int cx = 0; cx < n_cx; cx++) {
+                fillStripe(cx);
+            }
+        } else {
+            pool.invoke(new StripeTask(0, n_cx));
+        }
+        world.restore(first + n);
+        return first;
+    }
+
+    /**
+     * pick the stripe's squares, scanning it chunk by chunk so neighbouring
+     * ids end up close together
+     */
+    private void fillStripe(final int cx) {
+        final XoroshiroRandom random = new XoroshiroRandom(seed + cx);
+        final int end = stripe_start[cx + 1];
+        int id = stripe_start[cx];
+        int left = stripe_free[cx];
+        final int x0 = cx << GameWorldStore.CHUNK_SHIFT;
+        final int x1 = Math.min(x0 + GameWorldStore.CHUNK_SIZE, world.n_x);
+        for (int cy = 0; cy < world.n_cy && id < end; cy++) {
+            final int chunk[] = world.chunks[cx * world.n_cy + cy];
+            final int y0 = cy << GameWorldStore.CHUNK_SHIFT;
+            final int y1 = Math.min(y0 + GameWorldStore.CHUNK_SIZE, world.n_y);
+            for (int px = x0; px < x1 && id < end; px++) {
+                for (int py = y0; py < y1; py++) {
+                    if (chunk != null && chunk[((px & GameWorldStore.CHUNK_MASK) << GameWorldStore.CHUNK_SHIFT)
+                            | (py & GameWorldStore.CHUNK_MASK)] != GameWorldStore.EMPTY) {
+                        continue;
+                    }
+                    if (random.nextInt(left) < end - id) {
+                        world.x[id] = px;
+                        world.y[id] = py;
+                        world.last_x[id] = px;
+                        world.last_y[id] = py;
+                        world.time_since_last_reaction[id] = 0;
+                        world.n_bonds[id] = 0;
+                        if (++id == end) {
+                            break;
+                        }
+                    }
+                    left--;
+                }
+            }
+        }
+    }
+
+    /**
+     * fills the stripes lo .. hi - 1, splitting the range in half until a
+     * single stripe is left
+     */
+    private class StripeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int lo, hi;
+
+        StripeTask(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (hi - lo <= 1) {
+                if (hi > lo) {
+                    fillStripe(lo);
+                }
+                return;
+            }
+            final int mid = (lo + hi) >>> 1;
+            invokeAll(new StripeTask(lo, mid), new StripeTask(mid, hi));
+        }
+    }
+
+} // End of the class //
\ No newline at end of file
@@ -0,0 +1,436 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.util.Arrays;
+
+/**
+ * Region queries over a GameWorldStore: how many entities of a type or
+ * state are in a rectangle, which are within a radius of a square and which
+ * are nearest to it, without scanning every entity.
+ *
+ * The world keeps a count of each (type, state) per chunk, updated as
+ * entities are placed, moved, removed and change state, including by the
+ * stripe-parallel step. Rectangle counts read a summed-area table over
+ * those chunk counts, so the whole chunks inside a rectangle cost O(1) and
+ * only the partial chunks along its border are scanned square by square.
+ * The table is rebuilt on the first count after the world has changed.
+ * Radius and nearest neighbour lookups visit only the chunks that can hold
+ * an answer and skip those with no entity of the wanted kind, reading the
+ * occupancy bitmaps, so they cost about as much as the result. Distances
+ * wrap around on a torus.
+ *
+ * Like the world itself a query must run on the simulation thread, between
+ * ticks. Changes made through the world's own methods are seen on the next
+ * count; after writing the world's arrays directly, call refresh.
+ */
+public class WorldQuery {
+
+    /**
+     * matches any type or any state
+     */
+    public static final int ANY = -1;
+
+    /**
+     * farthest a nearest neighbour is looked for, so a squared distance
+     * fits in 32 bits of a heap key
+     */
+    public static final int MAX_REACH = 65535;
+
+    private static final int KINDS = GameWorldStore.KINDS;
+    private static final int CHUNK_SHIFT = GameWorldStore.CHUNK_SHIFT;
+    private static final int CHUNK_SIZE = GameWorldStore.CHUNK_SIZE;
+    private static final int CHUNK_MASK = GameWorldStore.CHUNK_MASK;
+
+    private final GameWorldStore world;
+
+    /**
+     * Summed-area table of the chunk counts: the entities of kind k in the
+     * chunks cx < i, cy < j are at (i * (n_cy + 1) + j) * KINDS + k. Built
+     * when the world was at these ticks and edits, null until first needed.
+     */
+    private int table[] = null;
+    private long table_ticks = -1;
+    private long table_edits = -1;
+
+    /**
+     * result buffer, and the query each chunk was last visited by
+     */
+    private int found[] = new int[64];
+    private int n_found = 0;
+    private final int visited[];
+    private int visit = 0;
+
+    /**
+     * bounded max-heap of the nearest candidates, (squared distance << 31) |
+     * id
+     */
+    private long heap[] = new long[16];
+    private int n_heap = 0;
+
+    public WorldQuery(final GameWorldStore world) {
+        this.world = world;
+        visited = new int[world.n_cx * world.n_cy];
+    }
+
+    public GameWorldStore getWorld() {
+        return world;
+    }
+
+    /**
+     * the kinds an entity must be one of to match, type and state may each
+     * be ANY
+     */
+    private static int[] kinds(int type, int state) {
+        if (type < ANY || type >= EntityBase.MAX_TYPES || state < ANY || state >= EntityBase.MAX_STATES)
+            throw new Error("WorldQuery : no such type " + type + " or state " + state);
+        final int t0 = type == ANY ? 0 : type;
+        final int t1 = type == ANY ? EntityBase.MAX_TYPES : type + 1;
+        final int s0 = state == ANY ? 0 : state;
+        final int s1 = state == ANY ? EntityBase.MAX_STATES : state + 1;
+        final int kinds[] = new int[(t1 - t0) * (s1 - s0)];
+        int n = 0;
+        for (int t = t0; t < t1; t++) {
+            for (int s = s0; s < s1; s++) {
+                kinds[n++] = t * EntityBase.MAX_STATES + s;
+            }
+        }
+        return kinds;
+    }
+
+    private boolean matches(int id, int type, int state) {
+        return (type == ANY || world.type[id] == type) && (state == ANY || world.state[id] == state);
+    }
+
+    /**
+     * entities of the wanted kinds in chunk c
+     */
+    private int chunkCount(int c, final int kinds[]) {
+        if (kinds.length == KINDS) {
+            return world.chunk_count[c];
+        }
+        int n = 0;
+        for (final int k : kinds) {
+            n += world.chunk_kinds[c * KINDS + k];
+        }
+        return n;
+    }
+
+    /**
+     * rebuild the summed-area table from the world's chunk counts now
+     */
+    public void refresh() {
+        final int n_cx = world.n_cx;
+        final int n_cy = world.n_cy;
+        final int stride = (n_cy + 1) * KINDS;
+        if (table == null) {
+            table = new int[(n_cx + 1) * stride];
+        }
+        final int sat[] = table;
+        final int counts[] = world.chunk_kinds;
+        for (int i = 1; i <= n_cx; i++) {
+            for (int j = 1; j <= n_cy; j++) {
+                final int at = i * stride + j * KINDS;
+                final int c = ((i - 1) * n_cy + j - 1) * KINDS;
+                for (int k = 0; k < KINDS; k++) {
+                    sat[at + k] = counts[c + k] + sat[at - KINDS + k] + sat[at - stride + k]
+                            - sat[at - stride - KINDS + k];
+                }
+            }
+        }
+        table_ticks = world.ticks;
+        table_edits = world.edits;
+    }
+
+    /**
+     * entities of the wanted kinds in the chunks cx0 <= cx < cx1,
+     * cy0 <= cy < cy1, from the table
+     */
+    private long tableSum(int cx0, int cy0, int cx1, int cy1, final int kinds[]) {
+        final int stride = (world.n_cy + 1) * KINDS;
+        final int a = cx1 * stride + cy1 * KINDS;
+        final int b = cx0 * stride + cy1 * KINDS;
+        final int c = cx1 * stride + cy0 * KINDS;
+        final int d = cx0 * stride + cy0 * KINDS;
+        long n = 0;
+        for (final int k : kinds) {
+            n += table[a + k] - table[b + k] - table[c + k] + table[d + k];
+        }
+        return n;
+    }
+
+    /**
+     * The number of entities of a type and state, either may be ANY, on the
+     * squares x0 <= x < x1, y0 <= y < y1. The rectangle is clipped to the
+     * world.
+     */
+    public long count(int x0, int y0, int x1, int y1, int type, int state) {
+        final int kinds[] = kinds(type, state);
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, world.n_x);
+        y1 = Math.min(y1, world.n_y);
+        if (x0 >= x1 || y0 >= y1) {
+            return 0;
+        }
+        if (table == null || table_ticks != world.ticks || table_edits != world.edits) {
+            refresh();
+        }
+        // the block of chunks wholly inside, the last chunk of a side is
+        // whole if the rectangle reaches the edge of the world
+        final int fx0 = (x0 + CHUNK_MASK) >> CHUNK_SHIFT;
+        final int fy0 = (y0 + CHUNK_MASK) >> CHUNK_SHIFT;
+        final int fx1 = x1 == world.n_x ? world.n_cx : x1 >> CHUNK_SHIFT;
+        final int fy1 = y1 == world.n_y ? world.n_cy : y1 >> CHUNK_SHIFT;
+        final boolean block = fx0 < fx1 && fy0 < fy1;
+        long n = block ? tableSum(fx0, fy0, fx1, fy1, kinds) : 0;
+        for (int cx = x0 >> CHUNK_SHIFT; cx <= (x1 - 1) >> CHUNK_SHIFT; cx++) {
+            for (int cy = y0 >> CHUNK_SHIFT; cy <= (y1 - 1) >> CHUNK_SHIFT; cy++) {
+                if (block && cx >= fx0 && cx < fx1 && cy >= fy0 && cy < fy1) {
+                    continue;
+                }
+                final int c = cx * world.n_cy + cy;
+                if (chunkCount(c, kinds) == 0) {
+                    continue;
+                }
+                // the part of the rectangle in this chunk, square by square
+                final int lx0 = Math.max(x0 - (cx << CHUNK_SHIFT), 0);
+                final int lx1 = Math.min(x1 - (cx << CHUNK_SHIFT), CHUNK_SIZE);
+                final int ly0 = Math.max(y0 - (cy << CHUNK_SHIFT), 0);
+                final int ly1 = Math.min(y1 - (cy << CHUNK_SHIFT), CHUNK_SIZE);
+                final long rows = (ly1 == CHUNK_SIZE ? -1L : (1L << ly1) - 1) & (-1L << ly0);
+                final int chunk[] = world.chunks[c];
+                final long bits[] = world.chunk_bits[c];
+                for (int lx = lx0; lx < lx1; lx++) {
+                    for (long b = bits[lx] & rows; b != 0; b &= b - 1) {
+                        final int id = chunk[(lx << CHUNK_SHIFT) | Long.numberOfTrailingZeros(b)];
+                        if (id != GameWorldStore.EMPTY && matches(id, type, state)) {
+                            n++;
+                        }
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * the shortest offset from a to b along an axis of size n, around the
+     * seam on a torus
+     */
+    private int offset(int d, int n) {
+        if (world.wrap) {
+            if (d > n >> 1) {
+                return d - n;
+            }
+            if (d < -(n >> 1)) {
+                return d + n;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Add the entities of the wanted type and state in chunk c within
+     * squared distance r2 of (px, py) to the results, or to the nearest
+     * candidates if k is above 0.
+     */
+    private void scanChunk(int c, int px, int py, long r2, int type, int state, int k) {
+        final int chunk[] = world.chunks[c];
+        if (chunk == null) {
+            return;
+        }
+        final long bits[] = world.chunk_bits[c];
+        final int ox = (c / world.n_cy) << CHUNK_SHIFT;
+        final int oy = (c % world.n_cy) << CHUNK_SHIFT;
+        long rows = 0;
+        for (int ly = 0; ly < CHUNK_SIZE; ly++) {
+            final long dy = offset(oy + ly - py, world.n_y);
+            if (dy * dy <= r2) {
+                rows |= 1L << ly;
+            }
+        }
+        for (int lx = 0; lx < CHUNK_SIZE; lx++) {
+            final long dx = offset(ox + lx - px, world.n_x);
+            if (dx * dx > r2) {
+                continue;
+            }
+            for (long b = bits[lx] & rows; b != 0; b &= b - 1) {
+                final int ly = Long.numberOfTrailingZeros(b);
+                final int id = chunk[(lx << CHUNK_SHIFT) | ly];
+                if (id == GameWorldStore.EMPTY || !matches(id, type, state)) {
+                    continue;
+                }
+                final long dy = offset(oy + ly - py, world.n_y);
+                final long d2 = dx * dx + dy * dy;
+                if (d2 > r2) {
+                    continue;
+                }
+                if (k > 0) {
+                    offer((d2 << 31) | id, k);
+                } else {
+                    if (n_found == found.length) {
+                        found = Arrays.copyOf(found, found.length * 2);
+                    }
+                    found[n_found++] = id;
+                }
+            }
+        }
+    }
+
+    /**
+     * the chunk holding the unwrapped chunk coordinates, or -1 if they are
+     * outside a bounded world
+     */
+    private int chunkAt(int cx, int cy) {
+        if (world.wrap) {
+            cx = Math.floorMod(cx, world.n_cx);
+            cy = Math.floorMod(cy, world.n_cy);
+        } else if (cx < 0 || cx >= world.n_cx || cy < 0 || cy >= world.n_cy) {
+            return -1;
+        }
+        return cx * world.n_cy + cy;
+    }
+
+    /**
+     * Ids of the entities of a type and state, either may be ANY, whose
+     * square is within the given distance of (px, py), in no particular
+     * order.
+     */
+    public int[] within(int px, int py, int radius, int type, int state) {
+        final int kinds[] = kinds(type, state);
+        n_found = 0;
+        if (radius < 0) {
+            return new int[0];
+        }
+        final long r2 = (long) radius * radius;
+        visit++;
+        // the chunks under the circle's box, at most the whole world
+        final int cx0 = (int) Math.max(((long) px - radius) >> CHUNK_SHIFT, (px >> CHUNK_SHIFT) - world.n_cx);
+        final int cx1 = (int) Math.min(((long) px + radius) >> CHUNK_SHIFT, (px >> CHUNK_SHIFT) + world.n_cx);
+        final int cy0 = (int) Math.max(((long) py - radius) >> CHUNK_SHIFT, (py >> CHUNK_SHIFT) - world.n_cy);
+        final int cy1 = (int) Math.min(((long) py + radius) >> CHUNK_SHIFT, (py >> CHUNK_SHIFT) + world.n_cy);
+        for (int cx = cx0; cx <= cx1; cx++) {
+            for (int cy = cy0; cy <= cy1; cy++) {
+                final int c = chunkAt(cx, cy);
+                // on a small torus the box can wrap onto the same chunk
+                if (c < 0 || visited[c] == visit || chunkCount(c, kinds) == 0) {
+                    continue;
+                }
+                visited[c] = visit;
+                scanChunk(c, px, py, r2, type, state, 0);
+            }
+        }
+        return Arrays.copyOf(found, n_found);
+    }
+
+    /**
+     * Ids of the k entities of a type and state, either may be ANY, nearest
+     * to (px, py), nearest first and ties by id; fewer if the world holds
+     * fewer within MAX_REACH squares. Chunks are searched in rings around
+     * the square's chunk until no further ring can hold anything nearer.
+     */
+    public int[] nearest(int px, int py, int k, int type, int state) {
+        final int kinds[] = kinds(type, state);
+        if (k <= 0) {
+            return new int[0];
+        }
+        if (heap.length < k) {
+            heap = new long[k];
+        }
+        n_heap = 0;
+        visit++;
+        final int ccx = px >> CHUNK_SHIFT;
+        final int ccy = py >> CHUNK_SHIFT;
+        final int rings = Math.max(world.n_cx, world.n_cy);
+        for (int ring = 0; ring <= rings; ring++) {
+            if (n_heap == k) {
+                // every square in this ring is at least this far away
+                final long near = (long) (ring - 1) * CHUNK_SIZE + 1;
+                if ((heap[0] >>> 31) < near * near) {
+                    break;
+                }
+            }
+            for (int cx = ccx - ring; cx <= ccx + ring; cx++) {
+                // the whole column on the ring's sides, the ends otherwise
+                final int step = cx == ccx - ring || cx == ccx + ring ? 1 : Math.max(1, 2 * ring);
+                for (int cy = ccy - ring; cy <= ccy + ring; cy += step) {
+                    final int c = chunkAt(cx, cy);
+                    if (c < 0 || visited[c] == visit || chunkCount(c, kinds) == 0) {
+                        continue;
+                    }
+                    visited[c] = visit;
+                    scanChunk(c, px, py, (long) MAX_REACH * MAX_REACH, type, state, k);
+                }
+            }
+        }
+        final int ids[] = new int[n_heap];
+        for (int i = n_heap - 1; i >= 0; i--) {
+            ids[i] = (int) (heap[0] & Integer.MAX_VALUE);
+            pop();
+        }
+        return ids;
+    }
+
+    /**
+     * keep a candidate if it is among the k nearest so far
+     */
+    private void offer(long key, int k) {
+        if (n_heap < k) {
+            int i = n_heap++;
+            while (i > 0 && heap[(i - 1) >> 1] < key) {
+                heap[i] = heap[(i - 1) >> 1];
+                i = (i - 1) >> 1;
+            }
+            heap[i] = key;
+        } else if (key < heap[0]) {
+            heap[0] = key;
+            siftDown(0);
+        }
+    }
+
+    private void pop() {
+        heap[0] = heap[--n_heap];
+        siftDown(0);
+    }
+
+    private void siftDown(int i) {
+        final long key = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n_heap) {
+                break;
+            }
+            if (child + 1 < n_heap && heap[child + 1] > heap[child]) {
+                child++;
+            }
+            if (heap[child] <= key) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = key;
+    }
+
+} // End of the class //
\ No newline at end of file
@@ -0,0 +1,326 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+import java.util.Arrays;
+
+/**
+ * Read-only copy of the entity positions, types and states at the end of a
+ * tick, for readers on other threads than the one running the simulation.
+ *
+ * A snapshot also lists what changed since the snapshot before it: the ids
+ * whose position, type, state or bond directions differ, where each of them
+ * was before, and the squares they touched. When the snapshot is not
+ * incremental the whole world should be treated as changed.
+ *
+ * A snapshot taken for a Viewport holds only the window of the world the
+ * view shows, in place of the entity copy and its changes.
+ *
+ * Snapshot buffers are recycled by SnapshotPublisher; a published snapshot is
+ * never written to until its reader has handed it back.
+ */
+public class WorldSnapshot {
+
+    long tick;
+    long time_nanos;
+
+    /**
+     * nanoseconds since the previous snapshot, 0 for the first one
+     */
+    long interval_nanos;
+
+    int n_x, n_y;
+
+    /**
+     * id limit of the world, as GameWorldStore.getIdLimit
+     */
+    int n;
+    int x[] = new int[0], y[] = new int[0];
+    byte type[] = new byte[0], state[] = new byte[0];
+
+    /**
+     * directions of each entity's bonded partners, as Entity.bondDirections
+     */
+    byte bond_directions[] = new byte[0];
+
+    /**
+     * ids changed since the previous snapshot and the position each had in it
+     */
+    int n_changed;
+    int changed[] = new int[64];
+    int from_x[] = new int[64], from_y[] = new int[64];
+
+    /**
+     * squares changed since the previous snapshot, only valid if incremental
+     */
+    final DirtyCells dirty = new DirtyCells(Integer.MAX_VALUE);
+    boolean incremental;
+
+    /**
+     * the probed square, x << 32 | y or -1 for none, what is on it and the
+     * summary of its neighbourhood, worked out on the simulation thread
+     */
+    long probed = -1;
+    int probe_x, probe_y;
+    String probe_contents = "";
+    String probe = null;
+
+    /**
+     * the cells a view shows, only valid if windowed
+     */
+    final ViewWindow window = new ViewWindow();
+    boolean windowed;
+
+    /**
+     * Copy the world as it is now into a new snapshot. Must run on the thread
+     * that steps the world, between ticks.
+     */
+    public static WorldSnapshot capture(final GameWorldStore world, final long tick, final WorldSnapshot previous) {
+        final WorldSnapshot snapshot = new WorldSnapshot();
+        snapshot.fill(world, tick, previous);
+        return snapshot;
+    }
+
+    /**
+     * Overwrite this snapshot with the world as it is now, reusing its
+     * arrays. Only the owner of the buffer may call this, never while it is
+     * published to readers.
+     */
+    void fill(final GameWorldStore world, final long tick, final WorldSnapshot previous) {
+        this.tick = tick;
+        time_nanos = System.nanoTime();
+        interval_nanos = previous == null ? 0 : time_nanos - previous.time_nanos;
+        n_x = world.n_x;
+        n_y = world.n_y;
+        n = world.n_ids;
+        clearProbe();
+        windowed = false;
+        if (x.length < n) {
+            final int cap = n + (n >> 1);
+            x = new int[cap];
+            y = new int[cap];
+            type = new byte[cap];
+            state = new byte[cap];
+            bond_directions = new byte[cap];
+        }
+        System.arraycopy(world.x, 0, x, 0, n);
+        System.arraycopy(world.y, 0, y, 0, n);
+        System.arraycopy(world.type, 0, type, 0, n);
+        System.arraycopy(world.state, 0, state, 0, n);
+        final byte n_bonds[] = world.n_bonds;
+        for (int id = 0; id < n; id++) {
+            bond_directions[id] = n_bonds[id] == 0 ? 0 : (byte) Entity.bondDirections(world, id);
+        }
+
+        n_changed = 0;
+        dirty.clear();
+        incremental = previous != null && !previous.windowed && previous.n_x == n_x && previous.n_y == n_y;
+        if (!incremental) {
+            return;
+        }
+
+        final int limit = Math.max(1024, n_x * n_y / 4);
+        for (int id = 0; id < n && incremental; id++) {
+            final boolean was_live = id < previous.n && previous.type[id] != GameWorldStore.FREE;
+            if (type[id] == GameWorldStore.FREE) {
+                // removed since the previous snapshot, only its old square changes
+                if (was_live) {
+                    dirty.mark(previous.x[id] * n_y + previous.y[id]);
+                    incremental = dirty.size() < limit;
+                }
+                continue;
+            }
+            final int px, py;
+            if (was_live) {
+                px = previous.x[id];
+                py = previous.y[id];
+                // a partner moving turns the bond, so that counts as a change
+                if (px == x[id] && py == y[id] && previous.type[id] == type[id]
+                        && previous.state[id] == state[id]
+                        && previous.bond_directions[id] == bond_directions[id]) {
+                    continue;
+                }
+            } else {
+                // new since the previous snapshot, nothing to slide from
+                px = x[id];
+                py = y[id];
+            }
+            // a step across the seam of a torus doesn't slide over the world
+            final boolean jumped = Math.abs(px - x[id]) > n_x / 2 || Math.abs(py - y[id]) > n_y / 2;
+            addChanged(id, jumped ? x[id] : px, jumped ? y[id] : py);
+            dirty.mark(px * n_y + py);
+            if (px != x[id] || py != y[id]) {
+                dirty.mark(x[id] * n_y + y[id]);
+            }
+            // past this many changes a full redraw is cheaper
+            incremental = dirty.size() < limit;
+        }
+        for (int id = n; id < previous.n && incremental; id++) {
+            if (previous.type[id] != GameWorldStore.FREE) {
+                dirty.mark(previous.x[id] * n_y + previous.y[id]);
+            }
+        }
+    }
+
+    /**
+     * Overwrite this snapshot with the part of the world a view shows, in
+     * time proportional to the cells shown. The entity copy is left empty
+     * and the snapshot is never incremental.
+     */
+    void fillWindow(final GameWorldStore world, final long tick, final WorldSnapshot previous,
+                    final Viewport view) {
+        this.tick = tick;
+        time_nanos = System.nanoTime();
+        interval_nanos = previous == null ? 0 : time_nanos - previous.time_nanos;
+        n_x = world.n_x;
+        n_y = world.n_y;
+        n = 0;
+        clearProbe();
+        n_changed = 0;
+        dirty.clear();
+        incremental = false;
+        windowed = true;
+        window.fill(world, view);
+    }
+
+    private void addChanged(final int id, final int px, final int py) {
+        if (n_changed == changed.length) {
+            final int cap = n_changed * 2;
+            changed = Arrays.copyOf(changed, cap);
+            from_x = Arrays.copyOf(from_x, cap);
+            from_y = Arrays.copyOf(from_y, cap);
+        }
+        changed[n_changed] = id;
+        from_x[n_changed] = px;
+        from_y[n_changed] = py;
+        n_changed++;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * every entity id is below this, free ids have type GameWorldStore.FREE
+     */
+    public int getIdLimit() {
+        return n;
+    }
+
+    public int getSizeX() {
+        return n_x;
+    }
+
+    public int getSizeY() {
+        return n_y;
+    }
+
+    public int getX(int id) {
+        return x[id];
+    }
+
+    public int getY(int id) {
+        return y[id];
+    }
+
+    public int getType(int id) {
+        return type[id];
+    }
+
+    public int getState(int id) {
+        return state[id];
+    }
+
+    /**
+     * directions of the entity's bonded partners, one bit per direction
+     */
+    public int getBondDirections(int id) {
+        return bond_directions[id] & 0xFF;
+    }
+
+    /**
+     * true if only the changed ids and dirty squares differ from the previous
+     * snapshot
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * true if the snapshot holds a view's window instead of every entity
+     */
+    public boolean isWindowed() {
+        return windowed;
+    }
+
+    /**
+     * the view a windowed snapshot was taken for, else null
+     */
+    public Viewport getViewport() {
+        return windowed ? window.view : null;
+    }
+
+    void setProbe(int px, int py, final String contents, final String summary) {
+        probed = ((long) px << 32) | (py & 0xFFFFFFFFL);
+        probe_x = px;
+        probe_y = py;
+        probe_contents = contents;
+        probe = summary;
+    }
+
+    private void clearProbe() {
+        probed = -1;
+        probe_contents = "";
+        probe = null;
+    }
+
+    /**
+     * the summary of the entities around a square if the snapshot was taken
+     * with that square probed, else ""
+     */
+    public String getProbe(int px, int py) {
+        return probe != null && probe_x == px && probe_y == py ? probe : "";
+    }
+
+    /**
+     * Type and state of the entity on a square as a short string, "" if the
+     * square is empty or outside the world. A whole-world snapshot only
+     * knows the square it was probed at, read off the world when it was
+     * taken; a view reads it from its window.
+     */
+    public String getContents(int px, int py) {
+        if (px < 0 || px >= n_x || py < 0 || py >= n_y)
+            return "";
+        if (windowed) {
+            final int cell = window.cellAt(px, py);
+            if (cell == ViewWindow.OUTSIDE || cell == 0) {
+                return "";
+            }
+            final String kind = EntityBase.getStringType((cell & 0xFF) - 1);
+            return window.level == 0 ? kind + ((cell >> 8) & 0xFF)
+                    : kind + " " + ((cell >> 8) & 0xFF) * 100 / 255 + "%";
+        }
+        return probe != null && probe_x == px && probe_y == py ? probe_contents : "";
+    }
+
+} // End of the class //
\ No newline at end of file
@@ -0,0 +1,93 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.game;
+
+/**
+ * xoroshiro128** generator. Small, fast and allocation free; not thread safe,
+ * each thread or partition should own an instance.
+ */
+public class XoroshiroRandom implements GameRandom {
+
+    private long s0, s1;
+
+    public XoroshiroRandom(long seed) {
+        setSeed(seed);
+    }
+
+    /**
+     * seed both words of state from a splitmix64 sequence so that nearby
+     * seeds still give unrelated streams
+     */
+    public void setSeed(long seed) {
+        long z = seed;
+        z += 0x9E3779B97F4A7C15L;
+        s0 = mix64(z);
+        z += 0x9E3779B97F4A7C15L;
+        s1 = mix64(z);
+        if ((s0 | s1) == 0) {
+            s1 = 1;
+        }
+    }
+
+    public long nextLong() {
+        final long a = s0;
+        long b = s1;
+        final long result = Long.rotateLeft(a * 5, 7) * 9;
+        b ^= a;
+        s0 = Long.rotateLeft(a, 24) ^ b ^ (b << 16);
+        s1 = Long.rotateLeft(b, 37);
+        return result;
+    }
+
+    public int nextInt(int bound) {
+        // multiply-shift of the top 32 bits, no division or rejection loop
+        return (int) (((nextLong() >>> 32) * bound) >>> 32);
+    }
+
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    public long getState0() {
+        return s0;
+    }
+
+    public long getState1() {
+        return s1;
+    }
+
+    /**
+     * restore a state previously read with getState0/getState1
+     */
+    public void setState(long state0, long state1) {
+        s0 = state0;
+        s1 = state1;
+    }
+
+    static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+} // End of the class //
\ No newline at end of file
@@ -0,0 +1,92 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.bench;
+
+import org.berlin.mechzone.game.Entity;
+import org.berlin.mechzone.game.GameRandom;
+import org.berlin.mechzone.game.GameWorldStore;
+import org.berlin.mechzone.game.XoroshiroRandom;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one Entity.makeMove, reported per entity. The world is sized so
+ * it always holds exactly ENTITIES cells at the requested density.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MoveKernelBenchmark {
+
+    private static final int ENTITIES = 1 << 16;
+
+    @Param({"0.05", "0.25", "0.5", "0.9"})
+    public double density;
+
+    private Entity cells[];
+    private GameRandom random;
+
+    @Setup
+    public void setup() {
+        final int side = (int) Math.ceil(Math.sqrt(ENTITIES / density));
+        final GameWorldStore world = new GameWorldStore(side, side, ENTITIES);
+        random = new XoroshiroRandom(1);
+        cells = new Entity[ENTITIES];
+        int n = 0;
+        while (n < ENTITIES) {
+            final int x = random.nextInt(side);
+            final int y = random.nextInt(side);
+            if (world.queryEmpty(x, y)) {
+                cells[n++] = new Entity(x, y, random.nextInt(6), 0, world);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTITIES)
+    public int makeMove() {
+        int moves = 0;
+        for (final Entity cell : cells) {
+            if (cell.makeMove(random)) {
+                moves++;
+            }
+        }
+        return moves;
+    }
+
+} // End of the class //
\ No newline at end of file
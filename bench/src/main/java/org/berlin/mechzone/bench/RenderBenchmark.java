@@ -0,0 +1,107 @@
+/*
+ Copyright (c) 2022 Berlin Brown
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+
+ */
+package org.berlin.mechzone.bench;
+
+import org.berlin.mechzone.game.GameGraphicsGrid;
+import org.berlin.mechzone.game.IncrementalRenderer;
+import org.berlin.mechzone.game.WorldSnapshot;
+import org.berlin.mechzone.game.XoroshiroRandom;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering cost per frame of GameGraphicsGrid.draw into an 800x600
+ * offscreen image, the same surface size the panel uses, and of a full
+ * frame through IncrementalRenderer, which switches to direct pixel writes
+ * below IncrementalRenderer.RASTER_SCALE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class RenderBenchmark {
+
+    private static final int DRAWING_SIZE_X = 800;
+    private static final int DRAWING_SIZE_Y = 600;
+
+    @Param({"50", "200", "800", "2000"})
+    public int size;
+
+    @Param({"0.25"})
+    public double density;
+
+    private GameGraphicsGrid grid;
+    private IncrementalRenderer renderer;
+    private WorldSnapshot snapshot;
+    private BufferedImage image;
+    private Graphics2D g;
+    private float scale;
+
+    @Setup
+    public void setup() {
+        grid = new GameGraphicsGrid(size, size, (int) (density * size * size), new XoroshiroRandom(1));
+        image = new BufferedImage(DRAWING_SIZE_X, DRAWING_SIZE_Y, BufferedImage.TYPE_INT_RGB);
+        g = image.createGraphics();
+        scale = DRAWING_SIZE_X / (float) size;
+        renderer = new IncrementalRenderer(DRAWING_SIZE_X, DRAWING_SIZE_Y);
+        snapshot = WorldSnapshot.capture(grid.getWorld(), grid.getCount(), null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        g.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage drawFrame() {
+        g.setColor(Color.white);
+        g.fillRect(0, 0, DRAWING_SIZE_X, DRAWING_SIZE_Y);
+        grid.draw(g, scale, false);
+        return image;
+    }
+
+    @Benchmark
+    public BufferedImage rendererFullFrame() {
+        renderer.invalidate();
+        renderer.update(snapshot, scale, false);
+        return renderer.getImage();
+    }
+
+} // End of the class //
\ No newline at end of file